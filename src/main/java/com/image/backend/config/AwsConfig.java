@@ -32,6 +32,42 @@ public class AwsConfig {
     @Value("${soilhm.aws.s3.base-url}")
     private String baseUrl;
 
+    @Getter
+    @Value("${soilhm.aws.s3.index.parallelism:8}")
+    private int indexParallelism;
+
+    @Getter
+    @Value("${soilhm.aws.s3.index.rebuild-interval:3600000}")
+    private long indexRebuildInterval;
+
+    @Getter
+    @Value("${soilhm.aws.s3.index.update-interval:60000}")
+    private long indexUpdateInterval;
+
+    @Getter
+    @Value("${soilhm.aws.s3.async.max-concurrency:16}")
+    private int asyncMaxConcurrency;
+
+    @Getter
+    @Value("${soilhm.aws.s3.missing.ttl:300}")
+    private long missingTtl;
+
+    @Getter
+    @Value("${soilhm.aws.s3.missing.max-entries:100000}")
+    private int missingMaxEntries;
+
+    @Getter
+    @Value("${soilhm.aws.s3.upload.part-size:8388608}")
+    private int uploadPartSize;
+
+    @Getter
+    @Value("${soilhm.aws.s3.upload.buffers:8}")
+    private int uploadBuffers;
+
+    @Getter
+    @Value("${soilhm.aws.s3.upload.window:4}")
+    private int uploadWindow;
+
     @Getter
     private AwsBasicCredentials credentials = null;
 
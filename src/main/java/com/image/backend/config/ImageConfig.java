@@ -0,0 +1,86 @@
+package com.image.backend.config;
+
+import com.image.backend.enums.ESearchStrategy;
+import lombok.AccessLevel;
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+
+@Getter
+@Configuration
+public class ImageConfig {
+    @Value("${soilhm.image.search.strategy:INDEX}")
+    private ESearchStrategy searchStrategy;
+
+    // Unless set, only searches of the index are cached, see #isCacheEnabled
+    @Getter(AccessLevel.NONE)
+    @Value("${soilhm.image.cache.enabled:#{null}}")
+    private Boolean cacheEnabled;
+
+    @Value("${soilhm.image.cache.ttl:60}")
+    private long cacheTtl;
+
+    @Value("${soilhm.image.cache.cell-size:1.0}")
+    private double cacheCellSize;
+
+    @Value("${soilhm.image.cache.radius-step:1.0}")
+    private double cacheRadiusStep;
+
+    @Value("${soilhm.image.cache.max-entries:4096}")
+    private int cacheMaxEntries;
+
+    @Value("${soilhm.image.cache.max-images:1000000}")
+    private int cacheMaxImages;
+
+    @Value("${soilhm.image.scan.min-fraction:0.25}")
+    private double scanMinFraction;
+
+    @Value("${soilhm.image.scan.min-images:100000}")
+    private int scanMinImages;
+
+    @Value("${soilhm.image.snapshot.path:}")
+    private String snapshotPath;
+
+    @Value("${soilhm.image.upload.chunk-size:1000}")
+    private int uploadChunkSize;
+
+    @Value("${soilhm.image.upload.commit-per-chunk:true}")
+    private boolean uploadCommitPerChunk;
+
+    // Seconds, the index replays the rows updated this long before its last replay
+    @Value("${soilhm.image.import.transaction-timeout:600}")
+    private int importTransactionTimeout;
+
+    @Value("${soilhm.image.import.workers:2}")
+    private int importWorkers;
+
+    @Value("${soilhm.image.import.queue-capacity:16}")
+    private int importQueueCapacity;
+
+    @Value("${soilhm.image.import.retry-after:30}")
+    private long importRetryAfter;
+
+    @Value("${soilhm.image.import.retention:3600}")
+    private long importRetention;
+
+    @Value("${soilhm.image.tile.size:10.0}")
+    private double tileSize;
+
+    @Value("${soilhm.image.tile.max-age:60}")
+    private long tileMaxAge;
+
+    @Value("${soilhm.image.tile.max-entries:4096}")
+    private int tileMaxEntries;
+
+    @Value("${soilhm.image.tile.ttl:60}")
+    private long tileTtl;
+
+    /**
+     * Entries of the search cache are evicted only by the uploads of this instance and
+     * expire after the TTL otherwise. Database searches read fresh rows without it, so the
+     * cache is enabled by default only for the index.
+     */
+    public boolean isCacheEnabled() {
+        return cacheEnabled != null ? cacheEnabled : searchStrategy == ESearchStrategy.INDEX;
+    }
+}
@@ -1,13 +1,18 @@
 package com.image.backend.config;
 
+import com.image.backend.util.StringUtil;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
 import org.springframework.orm.jpa.LocalContainerEntityManagerFactoryBean;
 import org.springframework.orm.jpa.vendor.HibernateJpaVendorAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import javax.sql.DataSource;
+import java.util.Map;
 import java.util.Properties;
 
 @Configuration
@@ -27,6 +32,9 @@ public class JPAConfig {
     @Value("${soilhm.db.password}")
     private String password;
 
+    @Value("${soilhm.db.replica.url:}")
+    private String replicaUrl;
+
     @Bean
     public LocalContainerEntityManagerFactoryBean entityManagerFactory() {
         LocalContainerEntityManagerFactoryBean em = new LocalContainerEntityManagerFactoryBean();
@@ -44,8 +52,36 @@ public class JPAConfig {
         return em;
     }
 
+    /**
+     * If a replica is configured, read-only transactions use it and the others the primary.
+     * Connections are fetched lazily, once the read-only flag of the transaction is known.
+     * <p>
+     * The replica may lag behind the primary, so a read right after a commit can miss it.
+     * Database searches which fill the search cache therefore run in their own read-write
+     * transaction, otherwise a stale result would stay cached until it is evicted. Uncached
+     * searches read the replica.
+     */
     @Bean
     public DataSource dataSource() {
+        var primary = dataSource(url);
+        if (!StringUtil.isValid(replicaUrl)) {
+            return primary;
+        }
+
+        var routing = new AbstractRoutingDataSource() {
+            @Override
+            protected Object determineCurrentLookupKey() {
+                return TransactionSynchronizationManager.isCurrentTransactionReadOnly() ? "replica" : "primary";
+            }
+        };
+        routing.setTargetDataSources(Map.of("primary", primary, "replica", dataSource(replicaUrl)));
+        routing.setDefaultTargetDataSource(primary);
+        routing.afterPropertiesSet();
+
+        return new LazyConnectionDataSourceProxy(routing);
+    }
+
+    private DataSource dataSource(String url) {
         DriverManagerDataSource dataSource = new DriverManagerDataSource();
 
         dataSource.setDriverClassName(driver);
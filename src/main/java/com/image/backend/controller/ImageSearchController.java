@@ -1,20 +1,37 @@
 package com.image.backend.controller;
 
-import com.image.backend.dto.image.ImageRequest;
+import com.image.backend.dto.PageFilter;
+import com.image.backend.dto.image.FrustumRequest;
+import com.image.backend.dto.image.ImagePage;
+import com.image.backend.dto.image.ImageQuery;
+import com.image.backend.dto.image.ImageQueryBatchResponse;
+import com.image.backend.dto.image.ImportJobStatus;
 import com.image.backend.dto.image.PointZ;
-import com.image.backend.dto.message.BasicResponse;
+import com.image.backend.enums.EErrorCode;
+import com.image.backend.enums.EImportFormat;
 import com.image.backend.enums.ERole;
 import com.image.backend.dto.Response;
+import com.image.backend.service.ImageImportJobService;
 import com.image.backend.service.ImageService;
+import com.image.backend.service.ImageTileService;
 import com.image.backend.util.annotations.ApiInformation;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import lombok.AllArgsConstructor;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import javax.annotation.security.RolesAllowed;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 @RestController
 @AllArgsConstructor
@@ -27,21 +44,170 @@ public class ImageSearchController {
 
     private final ImageService imageService;
 
+    private final ImageTileService imageTileService;
+
+    private final ImageImportJobService imageImportJobService;
+
     @GetMapping
-    @ApiOperation(value = "Get images by radius")
+    @ApiOperation(
+            value = "Get images by radius",
+            notes = "If max_results or lod is given, one image of each cell is returned. " +
+                    "Cells of lod 0 are 0.1 wide and every level doubles it, " +
+                    "if only max_results is given, the level is chosen to return about that many images."
+    )
     public ResponseEntity<Response<List<String>>> getImages(
+            @RequestParam Double x,
+            @RequestParam Double y,
+            @RequestParam Double z,
+            @RequestParam(defaultValue = "5.0", required = false) Double radius,
+            @RequestParam(name = "max_results", required = false) Integer maxResults,
+            @RequestParam(required = false) Integer lod) {
+        return imageService.getImages(PointZ.of(x, y, z), radius, maxResults, lod).toResponseEntity();
+    }
+
+    @GetMapping(produces = MediaType.APPLICATION_NDJSON_VALUE)
+    @ApiOperation(
+            value = "Stream images by radius",
+            notes = "Chosen by 'Accept: application/x-ndjson', each line is the url of an image."
+    )
+    public ResponseEntity<?> streamImages(
             @RequestParam Double x,
             @RequestParam Double y,
             @RequestParam Double z,
             @RequestParam(defaultValue = "5.0", required = false) Double radius) {
-        return imageService.getImages(PointZ.of(x, y, z), radius).toResponseEntity();
+        var result = imageService.validateRadius(radius);
+        if (result.isNotValid()) {
+            // The error is not a line of the stream
+            return ResponseEntity.badRequest()
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .body(Response.notOk(result.getMessage(), EErrorCode.BAD_REQUEST));
+        }
+
+        StreamingResponseBody body = outputStream -> imageService.streamImages(PointZ.of(x, y, z), radius, outputStream);
+
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_NDJSON)
+                .body(body);
+    }
+
+    @GetMapping(path = "tiles/{x}/{y}/{z}", produces = MediaType.APPLICATION_JSON_VALUE)
+    @ApiOperation(
+            value = "Get manifest of a tile",
+            notes = "Tiles are cubes of fixed size, tile (x, y, z) starts at (x, y, z) * size. " +
+                    "Responses carry a strong ETag and can be revalidated with If-None-Match."
+    )
+    public ResponseEntity<?> getTile(
+            @PathVariable long x,
+            @PathVariable long y,
+            @PathVariable long z,
+            WebRequest request) {
+        var response = imageTileService.getTile(x, y, z);
+        if (response.isNotOk()) {
+            return response.toResponseEntity();
+        }
+
+        var tile = response.getData();
+        var cacheControl = CacheControl.maxAge(imageTileService.getMaxAge(), TimeUnit.SECONDS).cachePublic();
+
+        if (request.checkNotModified(tile.getETag())) {
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                    .eTag(tile.getETag())
+                    .cacheControl(cacheControl)
+                    .build();
+        }
+
+        return ResponseEntity.ok()
+                .eTag(tile.getETag())
+                .cacheControl(cacheControl)
+                .body(tile.getBody());
+    }
+
+    @GetMapping("page")
+    @ApiOperation(
+            value = "Get images by radius page by page",
+            notes = "Images are ordered by distance. Pass next_cursor of a page as cursor to get the next one."
+    )
+    public ResponseEntity<Response<ImagePage>> getImagePage(
+            @RequestParam Double x,
+            @RequestParam Double y,
+            @RequestParam Double z,
+            @RequestParam(defaultValue = "5.0", required = false) Double radius,
+            @ModelAttribute PageFilter pageFilter) {
+        return imageService.getImagePage(PointZ.of(x, y, z), radius, pageFilter).toResponseEntity();
     }
 
-    @PostMapping("batch")
-    @ApiOperation(value = "Upload images as batch")
+    @GetMapping("nearest")
+    @ApiOperation(value = "Get k nearest images ordered by distance")
+    public ResponseEntity<Response<List<String>>> getNearestImages(
+            @RequestParam Double x,
+            @RequestParam Double y,
+            @RequestParam Double z,
+            @RequestParam(defaultValue = "10", required = false) Integer k) {
+        return imageService.getNearestImages(PointZ.of(x, y, z), k).toResponseEntity();
+    }
+
+    @PostMapping("query-batch")
+    @ApiOperation(
+            value = "Get images of many points at once",
+            notes = "Urls are listed once, results holds the indexes of the urls of each query by its index."
+    )
+    public ResponseEntity<Response<ImageQueryBatchResponse>> queryBatch(@RequestBody List<ImageQuery> body) {
+        return imageService.queryBatch(body).toResponseEntity();
+    }
+
+    @PostMapping("frustum")
+    @ApiOperation(
+            value = "Get images visible from a camera",
+            notes = "Images are ordered by their distance to the camera."
+    )
+    public ResponseEntity<Response<List<String>>> getFrustumImages(@RequestBody FrustumRequest body) {
+        return imageService.getFrustumImages(body).toResponseEntity();
+    }
+
+    @PostMapping(path = "batch", consumes = MediaType.APPLICATION_JSON_VALUE)
+    @ApiOperation(
+            value = "Upload images as batch",
+            notes = "Body is a JSON array of images with name and point. It is imported in the background, " +
+                    "the returned job can be followed on batch/{job_id}. Answers 429 with Retry-After when " +
+                    "too many imports are waiting."
+    )
     @RolesAllowed(ERole.SYSADMIN)
-    public ResponseEntity<Response<BasicResponse>> uploadBatch(@RequestBody List<ImageRequest> body) {
+    public ResponseEntity<Response<ImportJobStatus>> uploadBatch(InputStream body) throws IOException {
+        return toJobResponseEntity(imageImportJobService.submit(body, EImportFormat.JSON, false));
+    }
+
+    @PostMapping("import")
+    @ApiOperation(
+            value = "Import images from a pose file",
+            notes = "format is COLMAP for images.txt of COLMAP, whose camera centers become the positions, " +
+                    "CSV for name,x,y,z rows or JSON for the body of batch. The body may be gzip compressed. " +
+                    "It is imported in the background like batch. With bulk, rows are streamed into a staging " +
+                    "table with LOAD DATA LOCAL INFILE and merged at once, which is faster for large first imports."
+    )
+    @RolesAllowed(ERole.SYSADMIN)
+    public ResponseEntity<Response<ImportJobStatus>> importPoses(
+            @RequestParam EImportFormat format,
+            @RequestParam(defaultValue = "false", required = false) boolean bulk,
+            InputStream body) throws IOException {
+        return toJobResponseEntity(imageImportJobService.submit(body, format, bulk));
+    }
+
+    @GetMapping("batch/{jobId}")
+    @ApiOperation(value = "Get status of a batch upload")
+    @RolesAllowed(ERole.SYSADMIN)
+    public ResponseEntity<Response<ImportJobStatus>> getBatchJob(@PathVariable String jobId) {
+        return imageImportJobService.getJob(jobId).toResponseEntity();
+    }
+
+    private ResponseEntity<Response<ImportJobStatus>> toJobResponseEntity(Response<ImportJobStatus> response) {
+        var entity = response.toResponseEntity();
+
+        if (entity.getStatusCode() == HttpStatus.TOO_MANY_REQUESTS) {
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(imageImportJobService.getRetryAfter()))
+                    .body(response);
+        }
 
-        return imageService.uploadBatch(body).toResponseEntity();
+        return response.isOk() ? ResponseEntity.status(HttpStatus.ACCEPTED).body(response) : entity;
     }
 }
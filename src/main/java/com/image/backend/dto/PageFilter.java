@@ -27,6 +27,9 @@ public class PageFilter {
     @ApiModelProperty(notes = "It is the field by sorted, if you do not give you can not sort given items")
     private String fields;
 
+    @ApiModelProperty(notes = "Cursor of the next page for keyset paginated endpoints, if you do not give, first page is returned")
+    private String cursor;
+
     public Pageable asPageable() {
         if (direction != null && fields != null) {
             return PageRequest.of(page != null ? page : 0, page_size != null ? page_size : 20
@@ -0,0 +1,30 @@
+package com.image.backend.dto.image;
+
+import io.swagger.annotations.ApiModelProperty;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+
+@Getter
+@AllArgsConstructor
+@NoArgsConstructor
+public class FrustumRequest {
+
+    @ApiModelProperty(notes = "Position of the camera, w is not used")
+    private PointZ position;
+
+    @ApiModelProperty(notes = "Orientation of the camera as a quaternion, camera looks towards -z and its up is +y")
+    private PointZ orientation;
+
+    @ApiModelProperty(example = "60.0", notes = "Vertical field of view in degrees")
+    private Double fov;
+
+    @ApiModelProperty(example = "1.5", notes = "Width / height ratio, if you do not give, its default value is 1")
+    private Double aspect;
+
+    @ApiModelProperty(example = "0.1")
+    private Double near;
+
+    @ApiModelProperty(example = "50.0")
+    private Double far;
+}
@@ -0,0 +1,17 @@
+package com.image.backend.dto.image;
+
+import io.swagger.annotations.ApiModelProperty;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+@Getter
+@AllArgsConstructor
+public class ImagePage {
+
+    private List<String> urls;
+
+    @ApiModelProperty(notes = "Pass it as cursor to get the next page, it is null on the last page")
+    private String nextCursor;
+}
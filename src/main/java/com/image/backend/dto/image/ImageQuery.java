@@ -0,0 +1,17 @@
+package com.image.backend.dto.image;
+
+import io.swagger.annotations.ApiModelProperty;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+
+@Getter
+@AllArgsConstructor
+@NoArgsConstructor
+public class ImageQuery {
+
+    private PointZ point;
+
+    @ApiModelProperty(example = "5.0", notes = "If you do not give, its default value is 5.0")
+    private Double radius;
+}
@@ -0,0 +1,19 @@
+package com.image.backend.dto.image;
+
+import io.swagger.annotations.ApiModelProperty;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+import java.util.Map;
+
+@Getter
+@AllArgsConstructor
+public class ImageQueryBatchResponse {
+
+    @ApiModelProperty(notes = "Distinct urls of all queries")
+    private List<String> urls;
+
+    @ApiModelProperty(notes = "Indexes in urls for each query, keyed by the index of the query in the request")
+    private Map<Integer, List<Integer>> results;
+}
@@ -0,0 +1,40 @@
+package com.image.backend.dto.image;
+
+import com.image.backend.enums.EImportJobState;
+import io.swagger.annotations.ApiModelProperty;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.Date;
+
+@Getter
+@AllArgsConstructor
+public class ImportJobStatus {
+
+    private String jobId;
+
+    private EImportJobState state;
+
+    @ApiModelProperty(notes = "Number of images processed so far")
+    private long imported;
+
+    @ApiModelProperty(notes = "Number of new images, not counted by bulk imports")
+    private long inserted;
+
+    @ApiModelProperty(notes = "Number of images whose position changed, not counted by bulk imports")
+    private long updated;
+
+    @ApiModelProperty(notes = "Number of images which were not written as their position is the same")
+    private long unchanged;
+
+    @ApiModelProperty(notes = "Average number of images written per second since the job started")
+    private double rowsPerSecond;
+
+    private String error;
+
+    private Date createdAt;
+
+    private Date startedAt;
+
+    private Date finishedAt;
+}
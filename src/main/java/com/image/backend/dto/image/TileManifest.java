@@ -0,0 +1,33 @@
+package com.image.backend.dto.image;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.List;
+
+@Getter
+@AllArgsConstructor
+public class TileManifest {
+
+    private long x;
+
+    private long y;
+
+    private long z;
+
+    private double size;
+
+    private List<Item> images;
+
+    @Getter
+    @AllArgsConstructor
+    public static class Item {
+        private String name;
+
+        private double x;
+
+        private double y;
+
+        private double z;
+    }
+}
@@ -15,14 +15,15 @@ public enum EErrorCode implements EStatusCode {
     NOT_FOUND("404"),
     UNAUTHORIZED("401"),
     ACCESS_DENIED("403"),
-    BAD_REQUEST("400");
+    BAD_REQUEST("400"),
+    TOO_MANY_REQUESTS("429");
 
     private final String code;
 
     @NotNull
     @Contract(pure = true)
     public static List<EErrorCode> errorCodes() {
-        return Arrays.asList(UNHANDLED, NOT_FOUND, UNAUTHORIZED, ACCESS_DENIED, BAD_REQUEST);
+        return Arrays.asList(UNHANDLED, NOT_FOUND, UNAUTHORIZED, ACCESS_DENIED, BAD_REQUEST, TOO_MANY_REQUESTS);
     }
 
     EErrorCode(String code) {
@@ -0,0 +1,16 @@
+package com.image.backend.enums;
+
+public enum EImportFormat {
+    /**
+     * JSON array of images with name and point.
+     */
+    JSON,
+    /**
+     * COLMAP images.txt, positions are the camera centers.
+     */
+    COLMAP,
+    /**
+     * Comma separated name, x, y and z columns, optionally with a header row.
+     */
+    CSV
+}
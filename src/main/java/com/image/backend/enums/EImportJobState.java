@@ -0,0 +1,20 @@
+package com.image.backend.enums;
+
+public enum EImportJobState {
+    /**
+     * Job is waiting in the queue for a worker.
+     */
+    QUEUED,
+    /**
+     * Images of the job are being written.
+     */
+    RUNNING,
+    /**
+     * All images of the job are written.
+     */
+    COMPLETED,
+    /**
+     * Job is stopped by an error, see the error of the job.
+     */
+    FAILED
+}
@@ -0,0 +1,20 @@
+package com.image.backend.enums;
+
+public enum ESearchStrategy {
+    /**
+     * Searches are answered from the in-memory spatial index.
+     */
+    INDEX,
+    /**
+     * Searches are answered by the database using plain coordinate columns.
+     */
+    CRITERIA,
+    /**
+     * Searches are answered by the database using the SPATIAL index on the position column.
+     */
+    SPATIAL,
+    /**
+     * Searches are answered by the database using B-tree range scans on the Morton code column.
+     */
+    MORTON
+}
@@ -9,7 +9,8 @@ import java.util.List;
 
 public enum ESuccessCode implements EStatusCode {
     SUCCESSFUL("200"),
-    CREATED("201");
+    CREATED("201"),
+    ACCEPTED("202");
 
     private final String code;
 
@@ -20,7 +21,7 @@ public enum ESuccessCode implements EStatusCode {
     @NotNull
     @Contract(pure = true)
     public static List<ESuccessCode> successCodes() {
-        return Arrays.asList(SUCCESSFUL, CREATED);
+        return Arrays.asList(SUCCESSFUL, CREATED, ACCEPTED);
     }
 
     @Override
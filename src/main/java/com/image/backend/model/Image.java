@@ -6,6 +6,7 @@ import lombok.Setter;
 import org.hibernate.annotations.DynamicUpdate;
 
 import javax.persistence.*;
+import java.util.Date;
 
 @Entity
 @DynamicUpdate
@@ -34,6 +35,12 @@ public class Image {
     @Column
     private String url;
 
+    @Column(nullable = false)
+    private Long morton;
+
+    @Column(insertable = false, updatable = false)
+    private Date updatedAt;
+
     public Image(String name, Double x, Double y, Double z) {
         this.name = name;
         this.x = x;
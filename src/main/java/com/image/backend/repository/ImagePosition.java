@@ -0,0 +1,19 @@
+package com.image.backend.repository;
+
+/**
+ * Stored position and url of an image, read without loading the entity.
+ */
+public interface ImagePosition {
+
+    Long getId();
+
+    String getName();
+
+    Double getX();
+
+    Double getY();
+
+    Double getZ();
+
+    String getUrl();
+}
@@ -3,18 +3,29 @@ package com.image.backend.repository;
 import com.image.backend.model.Image;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.JpaSpecificationExecutor;
-import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
 @Repository
-public interface ImageRepository extends JpaRepository<Image, Long>, JpaSpecificationExecutor<Image> {
+public interface ImageRepository extends JpaRepository<Image, Long>, JpaSpecificationExecutor<Image>,
+        ImageRepositoryCustom {
+
+    List<ImagePosition> findPositionsByNameIn(Collection<String> names);
+
+    List<Image> findAllByUpdatedAtAfter(Date updatedAt);
 
-    @Modifying
+    /**
+     * Finds images in the sphere, the x/y plane is pruned by the SPATIAL index of position column.
+     */
     @Query(value = "" +
-            "insert into images (name,x,y,z) " +
-            "values(?1,?2,?3,?4) " +
-            "on duplicate key update " +
-            "x = ?2,y = ?3,z = ?4", nativeQuery = true)
-    void saveOrUpdate(String name, Double x, Double y, Double z);
+            "select * from images " +
+            "where MBRContains(LineString(Point(?1 - ?4,?2 - ?4),Point(?1 + ?4,?2 + ?4)),position) " +
+            "and z between ?3 - ?4 and ?3 + ?4 " +
+            "and pow(x - ?1,2) + pow(y - ?2,2) + pow(z - ?3,2) <= pow(?4,2) " +
+            "order by pow(x - ?1,2) + pow(y - ?2,2) + pow(z - ?3,2)", nativeQuery = true)
+    List<Image> findWithinRadius(Double x, Double y, Double z, Double radius);
 }
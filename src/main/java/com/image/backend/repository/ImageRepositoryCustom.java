@@ -0,0 +1,65 @@
+package com.image.backend.repository;
+
+import com.image.backend.dto.image.ImageRequest;
+import com.image.backend.dto.image.PointZ;
+import com.image.backend.model.Image;
+import org.springframework.data.jpa.domain.Specification;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongConsumer;
+import java.util.stream.Stream;
+
+public interface ImageRepositoryCustom {
+
+    /**
+     * Runs the specification without a count query and returns at most limit rows,
+     * ordering must be set by the specification.
+     */
+    List<Image> findAll(Specification<Image> specification, int limit);
+
+    /**
+     * Runs the specification as a forward-only cursor, rows are fetched fetchSize at a time
+     * and detached once they are handed out. The stream must be closed and consumed
+     * in a transaction.
+     */
+    Stream<Image> stream(Specification<Image> specification, int fetchSize);
+
+    /**
+     * Groups the rows by the Morton cell of given level and returns the smallest id of each
+     * cell, the database reads the rows but hands out only one id per cell. Cells are
+     * ordered by the distance of their nearest row to the point, then by their key, so
+     * the limit keeps the nearest cells.
+     */
+    List<Long> findCellRepresentativeIds(Specification<Image> specification, PointZ point, int level, int limit);
+
+    /**
+     * Most images {@link #saveOrUpdateAll} writes with one statement, each row takes 7 of the
+     * 65535 placeholders a prepared statement may have.
+     */
+    int MAX_SAVE_BATCH_SIZE = 65535 / 7;
+
+    /**
+     * Inserts or updates all images by name with multi-row statements of at most
+     * {@link #MAX_SAVE_BATCH_SIZE} rows.
+     */
+    void saveOrUpdateAll(List<ImageRequest> images);
+
+    /**
+     * Spools the images to a temporary file, loads it into a temporary staging table with
+     * LOAD DATA LOCAL INFILE and merges it into images with one upsert. Needs local_infile
+     * on the server and allowLocalInfile on the connection.
+     *
+     * @param progress called for each row written to the file
+     * @return number of loaded rows
+     */
+    long bulkLoad(Iterator<ImageRequest> images, LongConsumer progress);
+
+    /**
+     * Sets the urls of the images with a single statement.
+     *
+     * @param urls urls by image id
+     */
+    void updateUrls(Map<Long, String> urls);
+}
@@ -0,0 +1,211 @@
+package com.image.backend.repository;
+
+import com.image.backend.dto.image.ImageRequest;
+import com.image.backend.dto.image.PointZ;
+import com.image.backend.model.Image;
+import com.image.backend.model.Image_;
+import com.image.backend.util.spatial.MortonCode;
+import org.hibernate.Session;
+import org.hibernate.annotations.QueryHints;
+import org.springframework.data.jpa.domain.Specification;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.persistence.TypedQuery;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongConsumer;
+import java.util.stream.Stream;
+
+public class ImageRepositoryImpl implements ImageRepositoryCustom {
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Override
+    public List<Image> findAll(Specification<Image> specification, int limit) {
+        return createQuery(specification)
+                .setMaxResults(limit)
+                .getResultList();
+    }
+
+    @Override
+    public Stream<Image> stream(Specification<Image> specification, int fetchSize) {
+        return createQuery(specification)
+                .setHint(QueryHints.FETCH_SIZE, fetchSize)
+                .setHint(QueryHints.READ_ONLY, true)
+                .getResultStream()
+                .peek(entityManager::detach);
+    }
+
+    @Override
+    public List<Long> findCellRepresentativeIds(Specification<Image> specification, PointZ point,
+                                                int level, int limit) {
+        var criteriaBuilder = entityManager.getCriteriaBuilder();
+        var criteriaQuery = criteriaBuilder.createQuery(Long.class);
+        var root = criteriaQuery.from(Image.class);
+
+        var cell = criteriaBuilder.function("floor", Long.class,
+                criteriaBuilder.quot(root.get(Image_.morton), criteriaBuilder.literal(1L << (3 * level))));
+
+        criteriaQuery.select(criteriaBuilder.min(root.get(Image_.id)))
+                .groupBy(cell)
+                .orderBy(
+                        criteriaBuilder.asc(criteriaBuilder.min(ImageSpecifications.distanceSquared(root, criteriaBuilder, point))),
+                        criteriaBuilder.asc(cell)
+                );
+
+        var predicate = specification.toPredicate(root, criteriaQuery, criteriaBuilder);
+        if (predicate != null) {
+            criteriaQuery.where(predicate);
+        }
+
+        return entityManager.createQuery(criteriaQuery)
+                .setMaxResults(limit)
+                .getResultList();
+    }
+
+    @Override
+    public void saveOrUpdateAll(List<ImageRequest> images) {
+        if (images.isEmpty()) {
+            return;
+        }
+
+        if (images.size() > MAX_SAVE_BATCH_SIZE) {
+            for (int from = 0; from < images.size(); from += MAX_SAVE_BATCH_SIZE) {
+                saveOrUpdateAll(images.subList(from, Math.min(from + MAX_SAVE_BATCH_SIZE, images.size())));
+            }
+            return;
+        }
+
+        var sql = new StringBuilder("insert into images (name,x,y,z,position,morton) values ");
+        for (int i = 0; i < images.size(); i++) {
+            sql.append(i == 0 ? "" : ",").append("(?,?,?,?,Point(coalesce(?,0),coalesce(?,0)),?)");
+        }
+        sql.append(" on duplicate key update " +
+                "x = values(x),y = values(y),z = values(z),position = values(position),morton = values(morton)");
+
+        var query = entityManager.createNativeQuery(sql.toString());
+        var parameter = 1;
+        for (var image : images) {
+            var point = image.getPoint();
+            query.setParameter(parameter++, image.getName());
+            query.setParameter(parameter++, point.getX());
+            query.setParameter(parameter++, point.getY());
+            query.setParameter(parameter++, point.getZ());
+            query.setParameter(parameter++, point.getX());
+            query.setParameter(parameter++, point.getY());
+            query.setParameter(parameter++, MortonCode.encode(point.getX(), point.getY(), point.getZ()));
+        }
+
+        query.executeUpdate();
+    }
+
+    @Override
+    public long bulkLoad(Iterator<ImageRequest> images, LongConsumer progress) {
+        // Connector/J 3 only sends files named in the statement, so the rows are spooled first
+        var file = spool(images, progress);
+
+        try {
+            return loadFile(file.toAbsolutePath().toString());
+        } finally {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ignored) {
+
+            }
+        }
+    }
+
+    private static Path spool(Iterator<ImageRequest> images, LongConsumer progress) {
+        try {
+            var file = Files.createTempFile("images-", ".tsv");
+            try (var rows = new ImageRowInputStream(images, progress)) {
+                Files.copy(rows, file, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(file);
+                throw e;
+            }
+
+            return file;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private long loadFile(String path) {
+        var fileName = "'" + path.replace("\\", "\\\\").replace("'", "\\'") + "'";
+
+        return entityManager.unwrap(Session.class).doReturningWork(connection -> {
+            try (var statement = connection.createStatement()) {
+                statement.execute("drop temporary table if exists images_staging");
+                statement.execute("" +
+                        "create temporary table images_staging (" +
+                        "name varchar(255) not null,x double null,y double null,z double null," +
+                        "morton bigint not null)");
+
+                long loaded = statement.executeUpdate("" +
+                        "load data local infile " + fileName + " into table images_staging " +
+                        "character set utf8mb4 (name,x,y,z,morton)");
+
+                statement.executeUpdate("" +
+                        "insert into images (name,x,y,z,position,morton) " +
+                        "select name,x,y,z,Point(coalesce(x,0),coalesce(y,0)),morton from images_staging " +
+                        "on duplicate key update " +
+                        "x = values(x),y = values(y),z = values(z),position = values(position),morton = values(morton)");
+                statement.execute("drop temporary table images_staging");
+
+                return loaded;
+            }
+        });
+    }
+
+    @Override
+    public void updateUrls(Map<Long, String> urls) {
+        if (urls.isEmpty()) {
+            return;
+        }
+
+        var sql = new StringBuilder("update images set url = case id");
+        for (int i = 0; i < urls.size(); i++) {
+            sql.append(" when ? then ?");
+        }
+        // Filling in a resolved url is not a change of the image, so replays do not pick it up
+        sql.append(" end, updated_at = updated_at where id in (");
+        for (int i = 0; i < urls.size(); i++) {
+            sql.append(i == 0 ? "?" : ",?");
+        }
+        sql.append(")");
+
+        var query = entityManager.createNativeQuery(sql.toString());
+        var parameter = 1;
+        for (var entry : urls.entrySet()) {
+            query.setParameter(parameter++, entry.getKey());
+            query.setParameter(parameter++, entry.getValue());
+        }
+        for (var id : urls.keySet()) {
+            query.setParameter(parameter++, id);
+        }
+
+        query.executeUpdate();
+    }
+
+    private TypedQuery<Image> createQuery(Specification<Image> specification) {
+        var criteriaBuilder = entityManager.getCriteriaBuilder();
+        var criteriaQuery = criteriaBuilder.createQuery(Image.class);
+        var root = criteriaQuery.from(Image.class);
+
+        var predicate = specification.toPredicate(root, criteriaQuery, criteriaBuilder);
+        if (predicate != null) {
+            criteriaQuery.where(predicate);
+        }
+
+        return entityManager.createQuery(criteriaQuery.select(root));
+    }
+}
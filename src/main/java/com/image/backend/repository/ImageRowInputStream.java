@@ -0,0 +1,92 @@
+package com.image.backend.repository;
+
+import com.image.backend.dto.image.ImageRequest;
+import com.image.backend.util.spatial.MortonCode;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.function.LongConsumer;
+
+/**
+ * Encodes images as the tab separated "name, x, y, z, morton" rows of LOAD DATA, one row
+ * at a time while the stream is read.
+ */
+class ImageRowInputStream extends InputStream {
+    private static final byte[] EMPTY = new byte[0];
+
+    private final Iterator<ImageRequest> images;
+
+    private final LongConsumer progress;
+
+    private byte[] row = EMPTY;
+
+    private int position = 0;
+
+    ImageRowInputStream(@NotNull Iterator<ImageRequest> images, @NotNull LongConsumer progress) {
+        this.images = images;
+        this.progress = progress;
+    }
+
+    @Override
+    public int read() {
+        if (!fill()) {
+            return -1;
+        }
+
+        return row[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) {
+        if (length == 0) {
+            return 0;
+        }
+
+        var read = 0;
+        while (read < length && fill()) {
+            var count = Math.min(length - read, row.length - position);
+            System.arraycopy(row, position, buffer, offset + read, count);
+            position += count;
+            read += count;
+        }
+
+        return read == 0 ? -1 : read;
+    }
+
+    private boolean fill() {
+        if (position < row.length) {
+            return true;
+        }
+        if (!images.hasNext()) {
+            return false;
+        }
+
+        var image = images.next();
+        var point = image.getPoint();
+        var line = new StringBuilder()
+                .append(escape(image.getName())).append('\t')
+                .append(value(point.getX())).append('\t')
+                .append(value(point.getY())).append('\t')
+                .append(value(point.getZ())).append('\t')
+                .append(MortonCode.encode(point.getX(), point.getY(), point.getZ())).append('\n');
+
+        row = line.toString().getBytes(StandardCharsets.UTF_8);
+        position = 0;
+        progress.accept(1);
+
+        return true;
+    }
+
+    private static String value(Double value) {
+        return value != null ? value.toString() : "\\N";
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\")
+                .replace("\t", "\\t")
+                .replace("\n", "\\n")
+                .replace("\r", "\\r");
+    }
+}
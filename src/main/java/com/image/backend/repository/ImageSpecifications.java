@@ -0,0 +1,112 @@
+package com.image.backend.repository;
+
+import com.image.backend.dto.image.PointZ;
+import com.image.backend.model.Image;
+import com.image.backend.model.Image_;
+import com.image.backend.util.spatial.DistanceCursor;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.data.jpa.domain.Specification;
+
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.Expression;
+import javax.persistence.criteria.Predicate;
+import javax.persistence.criteria.Root;
+import javax.persistence.metamodel.SingularAttribute;
+import java.util.List;
+
+public class ImageSpecifications {
+
+    /**
+     * Bounding cube of the sphere as plain range predicates, so that the coordinate index can serve it.
+     */
+    public static Specification<Image> inBox(@NotNull PointZ point, double radius) {
+        return (root, criteriaQuery, criteriaBuilder) -> criteriaBuilder.and(
+                criteriaBuilder.between(root.get(Image_.x), point.getX() - radius, point.getX() + radius),
+                criteriaBuilder.between(root.get(Image_.y), point.getY() - radius, point.getY() + radius),
+                criteriaBuilder.between(root.get(Image_.z), point.getZ() - radius, point.getZ() + radius)
+        );
+    }
+
+    /**
+     * Rows which have all three coordinates.
+     */
+    public static Specification<Image> isLocated() {
+        return (root, criteriaQuery, criteriaBuilder) -> criteriaBuilder.and(
+                criteriaBuilder.isNotNull(root.get(Image_.x)),
+                criteriaBuilder.isNotNull(root.get(Image_.y)),
+                criteriaBuilder.isNotNull(root.get(Image_.z))
+        );
+    }
+
+    /**
+     * Rows whose Morton code is in one of the ranges.
+     */
+    public static Specification<Image> inMortonRanges(@NotNull List<long[]> ranges) {
+        return (root, criteriaQuery, criteriaBuilder) -> criteriaBuilder.or(ranges.stream()
+                .map(range -> criteriaBuilder.between(root.get(Image_.morton), range[0], range[1]))
+                .toArray(Predicate[]::new));
+    }
+
+    /**
+     * Rows which satisfy any of the specifications, as a single flat disjunction.
+     */
+    public static Specification<Image> anyOf(@NotNull List<Specification<Image>> specifications) {
+        return (root, criteriaQuery, criteriaBuilder) -> criteriaBuilder.or(specifications.stream()
+                .map(specification -> specification.toPredicate(root, criteriaQuery, criteriaBuilder))
+                .toArray(Predicate[]::new));
+    }
+
+    /**
+     * Rows in the sphere, without any ordering.
+     */
+    public static Specification<Image> inSphere(@NotNull PointZ point, double radius) {
+        return (root, criteriaQuery, criteriaBuilder) ->
+                criteriaBuilder.le(distanceSquared(root, criteriaBuilder, point), radius * radius);
+    }
+
+    /**
+     * Rows in the sphere which come after the cursor, ordered by distance and id as in
+     * DistanceCursor#isAfterCursor.
+     *
+     * @param cursor last row of the previous page, null for the first page
+     */
+    public static Specification<Image> inSphereAfter(@NotNull PointZ point, double radius, DistanceCursor cursor) {
+        return (root, criteriaQuery, criteriaBuilder) -> {
+            var distance = distanceSquared(root, criteriaBuilder, point);
+            var id = root.get(Image_.id);
+
+            criteriaQuery.orderBy(criteriaBuilder.asc(distance), criteriaBuilder.asc(id));
+
+            var inSphere = criteriaBuilder.le(distance, radius * radius);
+            if (cursor == null) {
+                return inSphere;
+            }
+
+            return criteriaBuilder.and(inSphere, criteriaBuilder.or(
+                    criteriaBuilder.gt(distance, cursor.getDistanceSquared()),
+                    criteriaBuilder.and(
+                            criteriaBuilder.equal(distance, cursor.getDistanceSquared()),
+                            criteriaBuilder.gt(id, cursor.getId())
+                    )
+            ));
+        };
+    }
+
+    static Expression<Double> distanceSquared(Root<Image> root, CriteriaBuilder criteriaBuilder,
+                                              PointZ point) {
+        return criteriaBuilder.sum(
+                criteriaBuilder.sum(
+                        square(root, criteriaBuilder, Image_.x, point.getX()),
+                        square(root, criteriaBuilder, Image_.y, point.getY())
+                ),
+                square(root, criteriaBuilder, Image_.z, point.getZ())
+        );
+    }
+
+    private static Expression<Double> square(Root<Image> root, CriteriaBuilder criteriaBuilder,
+                                             SingularAttribute<Image, Double> attribute, Double value) {
+        var diff = criteriaBuilder.diff(root.get(attribute), value);
+
+        return criteriaBuilder.prod(diff, diff);
+    }
+}
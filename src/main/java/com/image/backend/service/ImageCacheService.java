@@ -0,0 +1,316 @@
+package com.image.backend.service;
+
+import com.image.backend.config.ImageConfig;
+import com.image.backend.dto.image.ImageRequest;
+import com.image.backend.dto.image.PointZ;
+import com.image.backend.repository.ImagePosition;
+import com.image.backend.util.spatial.IndexedImage;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.stream.Collectors;
+
+/**
+ * Caches radius search results by quantized grid cell and radius bucket. An entry holds
+ * every image in the sphere around the cell center that covers any query whose point is
+ * in the cell and whose radius is in the bucket, so a hit is trimmed to the exact sphere
+ * of the query and gives the same result as the search itself.
+ * <p>
+ * Uploads of this instance evict the entries whose sphere contains the old or the new
+ * position of an image, entries expire after the TTL so that uploads of other instances
+ * are seen too.
+ */
+@Service
+public class ImageCacheService {
+    private static final double HALF_CELL_DIAGONAL = Math.sqrt(3) / 2;
+
+    private final ImageConfig imageConfig;
+
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    // Keys of the entries by their radius bucket, to find the spheres around a position
+    private final Map<Long, Set<Key>> keysByRadius = new HashMap<>();
+
+    private long cachedImages = 0;
+
+    private long generation = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ImageCacheService(ImageConfig imageConfig, MeterRegistry meterRegistry) {
+        this.imageConfig = imageConfig;
+
+        FunctionCounter.builder("images.search.cache.hits", hits, AtomicLong::get).register(meterRegistry);
+        FunctionCounter.builder("images.search.cache.misses", misses, AtomicLong::get).register(meterRegistry);
+        FunctionCounter.builder("images.search.cache.evictions", evictions, AtomicLong::get).register(meterRegistry);
+        Gauge.builder("images.search.cache.hit_ratio", this, ImageCacheService::getHitRatio).register(meterRegistry);
+        Gauge.builder("images.search.cache.entries", this, ImageCacheService::size).register(meterRegistry);
+    }
+
+    @EqualsAndHashCode
+    @AllArgsConstructor
+    private static final class Key {
+        private final long x;
+        private final long y;
+        private final long z;
+        private final long radius;
+    }
+
+    @Getter
+    @AllArgsConstructor
+    private static final class Entry {
+        private final double[] center;
+        private final double radius;
+        private final List<IndexedImage> images;
+        private final long expiresAt;
+    }
+
+    /**
+     * Answers the search from the cache or loads the cell with the loader.
+     *
+     * @param loader radius search which returns images in the sphere
+     * @return images in the sphere of the query ordered by distance
+     */
+    public List<IndexedImage> find(@NotNull PointZ point, double radius,
+                                   @NotNull BiFunction<PointZ, Double, List<IndexedImage>> loader) {
+        if (!imageConfig.isCacheEnabled()) {
+            return loader.apply(point, radius);
+        }
+
+        var cellSize = imageConfig.getCacheCellSize();
+        var radiusStep = imageConfig.getCacheRadiusStep();
+        var key = new Key(
+                (long) Math.floor(point.getX() / cellSize),
+                (long) Math.floor(point.getY() / cellSize),
+                (long) Math.floor(point.getZ() / cellSize),
+                Math.max(1, (long) Math.ceil(radius / radiusStep))
+        );
+
+        Entry entry;
+        long loadedGeneration;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && entry.getExpiresAt() <= System.currentTimeMillis()) {
+                remove(key);
+                entry = null;
+            }
+            loadedGeneration = generation;
+        }
+
+        if (entry != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+
+            var center = new double[]{
+                    (key.x + 0.5) * cellSize,
+                    (key.y + 0.5) * cellSize,
+                    (key.z + 0.5) * cellSize
+            };
+            var coveringRadius = key.radius * radiusStep + cellSize * HALF_CELL_DIAGONAL;
+            var expiresAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(imageConfig.getCacheTtl());
+            var images = loader.apply(PointZ.of(center[0], center[1], center[2]), coveringRadius);
+            entry = new Entry(center, coveringRadius, images, expiresAt);
+
+            put(key, entry, loadedGeneration);
+        }
+
+        return entry.getImages().stream()
+                .filter(image -> image.distanceSquared(point.getX(), point.getY(), point.getZ()) <= radius * radius)
+                .sorted(Comparator.comparingDouble(image ->
+                        image.distanceSquared(point.getX(), point.getY(), point.getZ())))
+                .collect(Collectors.toList());
+    }
+
+    private synchronized void put(Key key, Entry entry, long loadedGeneration) {
+        // Results loaded before an upload was committed may miss its rows
+        if (loadedGeneration != generation || entry.getImages().size() > imageConfig.getCacheMaxImages() / 8) {
+            return;
+        }
+
+        var old = entries.put(key, entry);
+        if (old != null) {
+            cachedImages -= old.getImages().size();
+        }
+        cachedImages += entry.getImages().size();
+        keysByRadius.computeIfAbsent(key.radius, radius -> new HashSet<>()).add(key);
+
+        while (!entries.isEmpty() && (entries.size() > imageConfig.getCacheMaxEntries() ||
+                cachedImages > imageConfig.getCacheMaxImages())) {
+            remove(entries.keySet().iterator().next());
+            evictions.incrementAndGet();
+        }
+    }
+
+    private void remove(Key key) {
+        var entry = entries.remove(key);
+        if (entry == null) {
+            return;
+        }
+
+        cachedImages -= entry.getImages().size();
+        var keys = keysByRadius.get(key.radius);
+        keys.remove(key);
+        if (keys.isEmpty()) {
+            keysByRadius.remove(key.radius);
+        }
+    }
+
+    /**
+     * Evicts the entries whose sphere contains the old or the new position of the uploaded
+     * images, once the current transaction is committed. An entry lists an image exactly
+     * when its sphere contains the stored position, so these are the entries which change.
+     *
+     * @param images   uploaded images
+     * @param previous stored positions of the uploaded images which were moved
+     */
+    public void evictAfterCommit(@NotNull Collection<ImageRequest> images, @NotNull Collection<ImagePosition> previous) {
+        if (!imageConfig.isCacheEnabled() || images.isEmpty()) {
+            return;
+        }
+
+        // Missing coordinates are stored as 0, as in the index
+        var positions = new ArrayList<double[]>(images.size() + previous.size());
+        images.forEach(image -> positions.add(coordinates(
+                image.getPoint().getX(), image.getPoint().getY(), image.getPoint().getZ())));
+        previous.forEach(position -> positions.add(coordinates(position.getX(), position.getY(), position.getZ())));
+
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            evict(positions);
+            return;
+        }
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                evict(positions);
+            }
+        });
+    }
+
+    private static double[] coordinates(Double x, Double y, Double z) {
+        return new double[]{x != null ? x : 0, y != null ? y : 0, z != null ? z : 0};
+    }
+
+    /**
+     * Drops every entry once the current transaction is committed, for imports which are
+     * too large to be evicted image by image.
+     */
+    public void clearAfterCommit() {
+        if (!imageConfig.isCacheEnabled()) {
+            return;
+        }
+
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            clear();
+            return;
+        }
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                clear();
+            }
+        });
+    }
+
+    private synchronized void clear() {
+        generation++;
+
+        evictions.addAndGet(entries.size());
+        entries.clear();
+        keysByRadius.clear();
+        cachedImages = 0;
+    }
+
+    /**
+     * Finds the entries of each radius bucket whose sphere contains a position. Entries of a
+     * bucket are centered in the grid cells, so the cells in reach are looked up directly,
+     * unless there are fewer entries in the bucket than cells in reach.
+     */
+    private synchronized void evict(List<double[]> positions) {
+        generation++;
+
+        var cellSize = imageConfig.getCacheCellSize();
+        var touched = new HashSet<Key>();
+        for (var bucket : keysByRadius.entrySet()) {
+            var radius = bucket.getKey() * imageConfig.getCacheRadiusStep() + cellSize * HALF_CELL_DIAGONAL;
+
+            for (var position : positions) {
+                var min = new long[3];
+                var max = new long[3];
+                var cells = 1d;
+                for (int i = 0; i < 3; i++) {
+                    min[i] = (long) Math.floor((position[i] - radius) / cellSize);
+                    max[i] = (long) Math.floor((position[i] + radius) / cellSize);
+                    cells *= max[i] - min[i] + 1;
+                }
+
+                if (cells >= bucket.getValue().size()) {
+                    for (var key : bucket.getValue()) {
+                        if (contains(key, position, radius, cellSize)) {
+                            touched.add(key);
+                        }
+                    }
+                    continue;
+                }
+
+                for (var x = min[0]; x <= max[0]; x++) {
+                    for (var y = min[1]; y <= max[1]; y++) {
+                        for (var z = min[2]; z <= max[2]; z++) {
+                            var key = new Key(x, y, z, bucket.getKey());
+                            if (entries.containsKey(key) && contains(key, position, radius, cellSize)) {
+                                touched.add(key);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        touched.forEach(this::remove);
+        evictions.addAndGet(touched.size());
+    }
+
+    private static boolean contains(Key key, double[] position, double radius, double cellSize) {
+        var dx = (key.x + 0.5) * cellSize - position[0];
+        var dy = (key.y + 0.5) * cellSize - position[1];
+        var dz = (key.z + 0.5) * cellSize - position[2];
+
+        return dx * dx + dy * dy + dz * dz <= radius * radius;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public double getHitRatio() {
+        var total = hits.get() + misses.get();
+
+        return total == 0 ? 0 : (double) hits.get() / total;
+    }
+}
@@ -0,0 +1,258 @@
+package com.image.backend.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.image.backend.config.ImageConfig;
+import com.image.backend.dto.Response;
+import com.image.backend.dto.image.ImageRequest;
+import com.image.backend.dto.image.ImportJobStatus;
+import com.image.backend.enums.EErrorCode;
+import com.image.backend.enums.EImportFormat;
+import com.image.backend.enums.EImportJobState;
+import com.image.backend.util.pose.ColmapImagesReader;
+import com.image.backend.util.pose.CsvPoseReader;
+import com.image.backend.util.pose.JsonPoseReader;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Runs batch uploads as background jobs on a fixed pool of workers with a bounded queue.
+ * A job is admitted before the body is read, so uploads are rejected while the queue is
+ * full without receiving them. The body is spooled to a temporary file, a job which gets
+ * a free worker and commits chunk by chunk imports it while it is still arriving, and the
+ * request returns as soon as the body is received. Jobs which run in a single transaction
+ * wait for the whole body before opening it.
+ * <p>
+ * Bodies may be JSON or a pose file and may be gzip compressed, they are parsed while
+ * being imported.
+ */
+@Service
+public class ImageImportJobService {
+    private static final int GZIP_MAGIC = 0x8b1f;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final ImageImportService imageImportService;
+
+    private final ImageConfig imageConfig;
+
+    private final ObjectMapper objectMapper;
+
+    private final ThreadPoolExecutor executor;
+
+    private final ConcurrentHashMap<String, Job> jobs = new ConcurrentHashMap<>();
+
+    public ImageImportJobService(ImageImportService imageImportService, ImageConfig imageConfig,
+                                 ObjectMapper objectMapper) {
+        this.imageImportService = imageImportService;
+        this.imageConfig = imageConfig;
+        this.objectMapper = objectMapper;
+
+        var workers = Math.max(1, imageConfig.getImportWorkers());
+        var threads = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, imageConfig.getImportQueueCapacity())),
+                runnable -> {
+                    var thread = new Thread(runnable, "image-import-" + threads.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    private static final class Job {
+        private final String id = UUID.randomUUID().toString();
+        private final EImportFormat format;
+        private final boolean bulk;
+        private final Date createdAt = new Date();
+        private final ImageImportService.Counter counter = new ImageImportService.Counter();
+        private volatile EImportJobState state = EImportJobState.QUEUED;
+        private volatile String error;
+        private volatile Date startedAt;
+        private volatile Date finishedAt;
+
+        private Job(EImportFormat format, boolean bulk) {
+            this.format = format;
+            this.bulk = bulk;
+        }
+
+        private ImportJobStatus toStatus() {
+            var imported = counter.getImported();
+            var rowsPerSecond = 0d;
+            if (startedAt != null) {
+                var end = finishedAt != null ? finishedAt.getTime() : System.currentTimeMillis();
+                rowsPerSecond = imported * 1000d / Math.max(1, end - startedAt.getTime());
+            }
+
+            return new ImportJobStatus(id, state, imported, counter.getInserted(), counter.getUpdated(),
+                    counter.getUnchanged(), rowsPerSecond, error, createdAt, startedAt, finishedAt);
+        }
+    }
+
+    public long getRetryAfter() {
+        return imageConfig.getImportRetryAfter();
+    }
+
+    /**
+     * Stores the body and queues it for import.
+     *
+     * @param format format of the body
+     * @param bulk   whether the images are loaded with the bulk loader of the database
+     * @return status of the queued job, or TOO_MANY_REQUESTS if the queue is full
+     */
+    public Response<ImportJobStatus> submit(@NotNull InputStream body, @NotNull EImportFormat format, boolean bulk)
+            throws IOException {
+        if (isFull()) {
+            return tooManyRequests();
+        }
+
+        var spool = new ImportSpool();
+        var job = new Job(format, bulk);
+
+        jobs.put(job.id, job);
+        try {
+            executor.execute(() -> run(job, spool));
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.id);
+            spool.discard();
+            return tooManyRequests();
+        }
+
+        try {
+            spool.write(body);
+        } finally {
+            spool.release();
+        }
+
+        return Response.ok(job.toStatus());
+    }
+
+    public Response<ImportJobStatus> getJob(@NotNull String jobId) {
+        var job = jobs.get(jobId);
+        if (job == null) {
+            return Response.notOk("Import job is not found", EErrorCode.NOT_FOUND);
+        }
+
+        return Response.ok(job.toStatus());
+    }
+
+    private boolean isFull() {
+        return executor.getQueue().remainingCapacity() == 0 &&
+                executor.getActiveCount() >= executor.getMaximumPoolSize();
+    }
+
+    private Response<ImportJobStatus> tooManyRequests() {
+        return Response.notOk("Import queue is full, retry later", EErrorCode.TOO_MANY_REQUESTS);
+    }
+
+    private void run(Job job, ImportSpool spool) {
+        job.startedAt = new Date();
+        job.state = EImportJobState.RUNNING;
+
+        try {
+            // Imports in a single transaction must not keep it open while the body arrives
+            if (job.bulk || !imageConfig.isUploadCommitPerChunk()) {
+                spool.awaitComplete();
+            }
+        } catch (IOException e) {
+            fail(job, e);
+            finish(job, spool);
+            return;
+        }
+
+        try (var input = open(spool)) {
+            switch (job.format) {
+                case COLMAP:
+                    importAll(job, new ColmapImagesReader(input));
+                    break;
+                case CSV:
+                    importAll(job, new CsvPoseReader(input));
+                    break;
+                default:
+                    try (var images = new JsonPoseReader(objectMapper, input)) {
+                        importAll(job, images);
+                    }
+            }
+            job.state = EImportJobState.COMPLETED;
+        } catch (Exception e) {
+            fail(job, e);
+        } finally {
+            finish(job, spool);
+        }
+    }
+
+    private void fail(Job job, Exception e) {
+        // The iterator wraps parsing errors of the elements
+        var cause = e.getCause() instanceof JsonProcessingException ? e.getCause() : e;
+        job.error = cause instanceof JsonProcessingException ?
+                "Invalid batch body: " + ((JsonProcessingException) cause).getOriginalMessage() :
+                cause.getMessage();
+        job.state = EImportJobState.FAILED;
+
+        logger.error(String.format("Import job %s failed: %s", job.id, job.error), e);
+    }
+
+    private void finish(Job job, ImportSpool spool) {
+        job.finishedAt = new Date();
+
+        try {
+            spool.release();
+        } catch (IOException e) {
+            logger.warn(String.format("Body of import job %s cannot be deleted.", job.id), e);
+        }
+    }
+
+    private void importAll(Job job, Iterator<ImageRequest> images) {
+        if (job.bulk) {
+            imageImportService.bulkLoad(images, job.counter);
+        } else {
+            imageImportService.importAll(images, job.counter);
+        }
+    }
+
+    private static InputStream open(ImportSpool spool) throws IOException {
+        var input = new PushbackInputStream(new BufferedInputStream(spool.open()), 2);
+        var header = new byte[2];
+        var read = input.readNBytes(header, 0, 2);
+        input.unread(header, 0, read);
+
+        if (read == 2 && ((header[0] & 0xff) | (header[1] & 0xff) << 8) == GZIP_MAGIC) {
+            return new BufferedInputStream(new GZIPInputStream(input));
+        }
+
+        return input;
+    }
+
+    /**
+     * Forgets the jobs which finished longer than the retention ago.
+     */
+    @Scheduled(fixedDelay = 60 * 1000)
+    public void removeFinishedJobs() {
+        var expiredBefore = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(imageConfig.getImportRetention());
+
+        jobs.values().removeIf(job -> job.finishedAt != null && job.finishedAt.getTime() < expiredBefore);
+    }
+
+    @PreDestroy
+    protected void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,250 @@
+package com.image.backend.service;
+
+import com.image.backend.config.ImageConfig;
+import com.image.backend.dto.image.ImageRequest;
+import com.image.backend.dto.image.PointZ;
+import com.image.backend.repository.ImagePosition;
+import com.image.backend.repository.ImageRepository;
+import com.image.backend.util.spatial.IndexedImage;
+import lombok.RequiredArgsConstructor;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.persistence.EntityManager;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Writes uploaded images in chunks of multi-row upserts. Each chunk is committed in its own
+ * transaction by default, and the spatial index and caches are updated with its rows once
+ * it is committed, so memory does not grow with the size of the import. When commit per
+ * chunk is disabled, the chunks are written in a single transaction and the index and caches
+ * are refreshed as a whole after it. Each chunk is compared with the stored positions first
+ * and only new or moved images are written.
+ */
+@Service
+@RequiredArgsConstructor
+public class ImageImportService {
+
+    private final ImageRepository imageRepository;
+
+    private final ImageIndexService imageIndexService;
+
+    private final ImageCacheService imageCacheService;
+
+    private final ImageTileService imageTileService;
+
+    private final ImageConfig imageConfig;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final EntityManager entityManager;
+
+    /**
+     * Numbers of images processed by an import, updated after each written chunk.
+     */
+    public static final class Counter {
+        private final AtomicLong imported = new AtomicLong();
+        private final AtomicLong inserted = new AtomicLong();
+        private final AtomicLong updated = new AtomicLong();
+        private final AtomicLong unchanged = new AtomicLong();
+
+        public long getImported() {
+            return imported.get();
+        }
+
+        public long getInserted() {
+            return inserted.get();
+        }
+
+        public long getUpdated() {
+            return updated.get();
+        }
+
+        public long getUnchanged() {
+            return unchanged.get();
+        }
+    }
+
+    /**
+     * Counts of the images of one chunk, added to the counter once the chunk is committed.
+     */
+    private static final class Counts {
+        private long imported;
+        private long inserted;
+        private long updated;
+        private long unchanged;
+
+        private void add(Counts other) {
+            imported += other.imported;
+            inserted += other.inserted;
+            updated += other.updated;
+            unchanged += other.unchanged;
+        }
+
+        private void addTo(Counter counter) {
+            counter.imported.addAndGet(imported);
+            counter.inserted.addAndGet(inserted);
+            counter.updated.addAndGet(updated);
+            counter.unchanged.addAndGet(unchanged);
+        }
+    }
+
+    /**
+     * Writes the images chunk by chunk as they are read from the iterator, so only one
+     * chunk is held in memory and the first rows are written before the last ones are read.
+     * Images whose stored position is the same are not written. With commit per chunk, the
+     * transaction of a chunk is opened once the chunk is read.
+     *
+     * @param counter counts of the import, updated after each committed chunk
+     */
+    public void importAll(@NotNull Iterator<ImageRequest> images, @NotNull Counter counter) {
+        // The names of a chunk are bound as placeholders too, so chunks are kept to one statement
+        var chunkSize = Math.max(1, Math.min(imageConfig.getUploadChunkSize(), ImageRepository.MAX_SAVE_BATCH_SIZE));
+
+        if (imageConfig.isUploadCommitPerChunk()) {
+            while (images.hasNext()) {
+                var chunk = nextChunk(images, chunkSize);
+                var counts = transaction().execute(status -> write(chunk, true));
+                Objects.requireNonNull(counts).addTo(counter);
+            }
+            return;
+        }
+
+        var startedAt = System.currentTimeMillis();
+        var total = transaction().execute(status -> {
+            var counts = new Counts();
+            while (images.hasNext()) {
+                counts.add(write(nextChunk(images, chunkSize), false));
+            }
+
+            imageIndexService.refreshAfterCommit(startedAt);
+            imageCacheService.clearAfterCommit();
+            imageTileService.clearAfterCommit();
+
+            return counts;
+        });
+        Objects.requireNonNull(total).addTo(counter);
+    }
+
+    /**
+     * Loads the images with the bulk loader of the database in a single transaction. The
+     * index is refreshed from the updated rows and the caches are cleared after the commit.
+     * Rows are not compared, so only the number of imported images is counted.
+     *
+     * @param counter counts of the import, updated for each row sent to the database
+     */
+    public void bulkLoad(@NotNull Iterator<ImageRequest> images, @NotNull Counter counter) {
+        var startedAt = System.currentTimeMillis();
+        transaction().executeWithoutResult(status -> {
+            imageRepository.bulkLoad(images, counter.imported::addAndGet);
+
+            imageIndexService.refreshAfterCommit(startedAt);
+            imageCacheService.clearAfterCommit();
+            imageTileService.clearAfterCommit();
+        });
+    }
+
+    /**
+     * Imports commit within the transaction timeout, which bounds how late their rows can
+     * become visible to the replays of the index on other instances.
+     */
+    private TransactionTemplate transaction() {
+        var template = new TransactionTemplate(Objects.requireNonNull(transactionTemplate.getTransactionManager()),
+                transactionTemplate);
+        template.setTimeout(imageConfig.getImportTransactionTimeout());
+
+        return template;
+    }
+
+    private static List<ImageRequest> nextChunk(Iterator<ImageRequest> images, int chunkSize) {
+        var chunk = new ArrayList<ImageRequest>(chunkSize);
+        while (chunk.size() < chunkSize && images.hasNext()) {
+            chunk.add(images.next());
+        }
+
+        return chunk;
+    }
+
+    /**
+     * Writes the new and moved images of the chunk and detaches everything it loaded.
+     *
+     * @param update whether the index and caches are updated with the rows of this chunk
+     */
+    private Counts write(List<ImageRequest> chunk, boolean update) {
+        // The last one of the same name wins, as it would with the upsert
+        var latest = new LinkedHashMap<String, ImageRequest>();
+        chunk.forEach(image -> latest.put(image.getName(), image));
+
+        var stored = imageRepository.findPositionsByNameIn(latest.keySet()).stream()
+                .collect(Collectors.toMap(ImagePosition::getName, Function.identity()));
+
+        var changed = new ArrayList<ImageRequest>();
+        var moved = new ArrayList<ImagePosition>();
+        long inserted = 0;
+        for (var image : latest.values()) {
+            var position = stored.get(image.getName());
+            if (position == null) {
+                inserted++;
+            } else if (isSame(position, image.getPoint())) {
+                continue;
+            } else {
+                moved.add(position);
+            }
+            changed.add(image);
+        }
+
+        var counts = new Counts();
+        counts.imported = chunk.size();
+        counts.inserted = inserted;
+        counts.updated = changed.size() - inserted;
+        counts.unchanged = chunk.size() - changed.size();
+
+        if (changed.isEmpty()) {
+            return counts;
+        }
+
+        imageRepository.saveOrUpdateAll(changed);
+
+        if (update) {
+            if (imageIndexService.isEnabled()) {
+                // Projections are not cached by the persistence context, so they hold the rows just written
+                var names = changed.stream().map(ImageRequest::getName).collect(Collectors.toSet());
+                imageIndexService.indexAfterCommit(imageRepository.findPositionsByNameIn(names).stream()
+                        .map(ImageImportService::toIndexed)
+                        .collect(Collectors.toList()));
+            }
+            imageCacheService.evictAfterCommit(changed, moved);
+            imageTileService.evictAfterCommit(changed, moved);
+        }
+        entityManager.clear();
+
+        return counts;
+    }
+
+    // Missing coordinates are stored as 0, as in IndexedImage#of
+    private static IndexedImage toIndexed(ImagePosition position) {
+        return new IndexedImage(
+                position.getId(),
+                position.getName(),
+                position.getX() != null ? position.getX() : 0,
+                position.getY() != null ? position.getY() : 0,
+                position.getZ() != null ? position.getZ() : 0,
+                position.getUrl()
+        );
+    }
+
+    private static boolean isSame(ImagePosition position, PointZ point) {
+        return Objects.equals(position.getX(), point.getX()) &&
+                Objects.equals(position.getY(), point.getY()) &&
+                Objects.equals(position.getZ(), point.getZ());
+    }
+}
@@ -0,0 +1,614 @@
+package com.image.backend.service;
+
+import com.image.backend.config.ImageConfig;
+import com.image.backend.dto.image.PointZ;
+import com.image.backend.enums.ESearchStrategy;
+import com.image.backend.model.Image;
+import com.image.backend.repository.ImageRepository;
+import com.image.backend.util.StringUtil;
+import com.image.backend.util.spatial.CoordinateColumns;
+import com.image.backend.util.spatial.DistanceCursor;
+import com.image.backend.util.spatial.ImageSnapshot;
+import com.image.backend.util.spatial.IndexedImage;
+import com.image.backend.util.spatial.KdTree;
+import lombok.RequiredArgsConstructor;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Keeps the positions of all images in an in-memory k-d tree, so that spatial
+ * searches can be answered without touching the database. Searches which cover a
+ * large part of the scene scan a columnar copy of the positions in parallel instead.
+ * <p>
+ * When a snapshot path is configured, the images are kept in a memory-mapped
+ * {@link ImageSnapshot} and the tree only holds the rows changed since it was written.
+ * The snapshot is written again periodically and on shutdown, on startup only the rows
+ * updated after its stamp are read from the database. Images decoded from the snapshot
+ * are new objects on every query, so the urls resolved for them are kept aside until
+ * their rows are replayed.
+ * <p>
+ * Uploads of this instance are indexed once they are committed. The rows updated by
+ * other instances are replayed periodically, by their update stamp.
+ */
+@Service
+@RequiredArgsConstructor
+public class ImageIndexService {
+    // Rows are stamped when their statement runs but become visible on commit, which happens
+    // at most the import transaction timeout later. This covers the clocks of the instances.
+    private static final long REPLAY_SLACK_MILLIS = 60 * 1000;
+
+    // Below this, the rows changed since the snapshot are searched faster in their tree
+    private static final int SCAN_MIN_TREE_SIZE = 16 * 1024;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final ImageRepository imageRepository;
+
+    private final ImageConfig imageConfig;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final KdTree<IndexedImage> tree = new KdTree<>();
+
+    private final Map<String, KdTree.Node<IndexedImage>> nodes = new HashMap<>();
+
+    private final ForkJoinPool scanPool = new ForkJoinPool();
+
+    private final Object columnsMonitor = new Object();
+
+    private volatile CoordinateColumns<IndexedImage> columns = null;
+
+    private final Object snapshotMonitor = new Object();
+
+    private volatile ImageSnapshot snapshot = null;
+
+    // Replays run one at a time, so that the stamp only moves forward over indexed rows
+    private final Object replayMonitor = new Object();
+
+    private final AtomicLong replayedUntil = new AtomicLong();
+
+    private final ConcurrentHashMap<Long, String> snapshotUrls = new ConcurrentHashMap<>();
+
+    public boolean isEnabled() {
+        return imageConfig.getSearchStrategy() == ESearchStrategy.INDEX;
+    }
+
+    @PostConstruct
+    protected void load() {
+        if (!isEnabled()) {
+            return;
+        }
+
+        var start = System.currentTimeMillis();
+        var path = snapshotPath();
+
+        if (path != null && Files.exists(path)) {
+            try {
+                snapshot = ImageSnapshot.open(path);
+                replayedUntil.set(snapshot.getStamp());
+                var replayed = replay(Long.MAX_VALUE);
+
+                logger.info(String.format("Spatial index is mapped with %d images and %d replayed rows in %d ms.",
+                        snapshot.size(), replayed, System.currentTimeMillis() - start));
+                return;
+            } catch (IOException e) {
+                snapshot = null;
+                logger.warn("Spatial index snapshot cannot be read, loading the index from the database.", e);
+            }
+        }
+
+        List<IndexedImage> images;
+        synchronized (replayMonitor) {
+            var rows = imageRepository.findAll();
+            images = rows.stream()
+                    .map(IndexedImage::of)
+                    .collect(Collectors.toList());
+            replayedUntil.set(latestUpdate(rows, 0));
+
+            lock.writeLock().lock();
+            try {
+                rebuild(images);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        logger.info(String.format("Spatial index is loaded with %d images in %d ms.",
+                images.size(), System.currentTimeMillis() - start));
+
+        if (path != null) {
+            writeSnapshot(path);
+        }
+    }
+
+    @PreDestroy
+    protected void shutdown() {
+        scanPool.shutdown();
+
+        var path = snapshotPath();
+        if (isEnabled() && path != null) {
+            writeSnapshot(path);
+        }
+    }
+
+    /**
+     * Reads the rows changed since the last replay and writes a new snapshot.
+     */
+    @Scheduled(fixedDelayString = "${soilhm.image.snapshot.interval:600000}",
+            initialDelayString = "${soilhm.image.snapshot.interval:600000}")
+    public void saveSnapshot() {
+        var path = snapshotPath();
+        if (!isEnabled() || path == null) {
+            return;
+        }
+
+        replay(Long.MAX_VALUE);
+        writeSnapshot(path);
+    }
+
+    /**
+     * Reads the rows changed since the last replay, so that uploads handled by other
+     * instances reach the index without a restart.
+     */
+    @Scheduled(fixedDelayString = "${soilhm.image.index.replay-interval:60000}",
+            initialDelayString = "${soilhm.image.index.replay-interval:60000}")
+    public void replayChanges() {
+        if (!isEnabled()) {
+            return;
+        }
+
+        replay(Long.MAX_VALUE);
+    }
+
+    private Path snapshotPath() {
+        return StringUtil.isValid(imageConfig.getSnapshotPath()) ? Paths.get(imageConfig.getSnapshotPath()) : null;
+    }
+
+    /**
+     * Indexes the rows updated since {@link #replayedUntil}, less the time a transaction may
+     * take to commit, or since given time if it is earlier.
+     *
+     * @param since start of a transaction whose rows must be replayed
+     * @return number of replayed rows
+     */
+    private int replay(long since) {
+        synchronized (replayMonitor) {
+            var until = replayedUntil.get();
+            var margin = TimeUnit.SECONDS.toMillis(imageConfig.getImportTransactionTimeout()) + REPLAY_SLACK_MILLIS;
+            var rows = imageRepository.findAllByUpdatedAtAfter(new Date(Math.min(since - REPLAY_SLACK_MILLIS, until - margin)));
+
+            index(rows.stream().map(IndexedImage::of).collect(Collectors.toList()));
+            replayedUntil.accumulateAndGet(latestUpdate(rows, until), Math::max);
+            rows.forEach(row -> snapshotUrls.remove(row.getId()));
+
+            return rows.size();
+        }
+    }
+
+    private static long latestUpdate(List<Image> rows, long since) {
+        return rows.stream()
+                .map(Image::getUpdatedAt)
+                .filter(Objects::nonNull)
+                .mapToLong(Date::getTime)
+                .reduce(since, Math::max);
+    }
+
+    /**
+     * Writes the snapshot and the tree into a new snapshot, maps it and drops the rows
+     * which were written and have not changed since from the tree.
+     */
+    private void writeSnapshot(Path path) {
+        synchronized (snapshotMonitor) {
+            var start = System.currentTimeMillis();
+            var stamp = replayedUntil.get();
+
+            List<IndexedImage> changed;
+            ImageSnapshot base;
+
+            lock.readLock().lock();
+            try {
+                changed = tree.values();
+                base = snapshot;
+            } finally {
+                lock.readLock().unlock();
+            }
+
+            var names = changed.stream().map(IndexedImage::getName).collect(Collectors.toSet());
+            Iterable<IndexedImage> images = () -> Stream.concat(
+                    base == null ? Stream.<IndexedImage>empty() : StreamSupport.stream(base.spliterator(), false)
+                            .filter(image -> !names.contains(image.getName())),
+                    changed.stream()
+            ).iterator();
+
+            ImageSnapshot written;
+            try {
+                ImageSnapshot.write(path, stamp, images);
+                written = ImageSnapshot.open(path);
+            } catch (IOException e) {
+                logger.error("Spatial index snapshot cannot be written.", e);
+                return;
+            }
+
+            lock.writeLock().lock();
+            try {
+                snapshot = written;
+
+                for (var image : changed) {
+                    var node = nodes.get(image.getName());
+                    if (node != null && node.getValue() == image) {
+                        tree.remove(node);
+                        nodes.remove(image.getName());
+                    }
+                }
+
+                if (tree.needsRebuild() || tree.size() == 0) {
+                    rebuild(tree.values());
+                }
+                columns = null;
+            } finally {
+                lock.writeLock().unlock();
+            }
+
+            logger.info(String.format("Spatial index snapshot is written with %d images in %d ms.",
+                    written.size(), System.currentTimeMillis() - start));
+        }
+    }
+
+    /**
+     * Finds the images whose distance to the point is less than or equal to radius.
+     *
+     * @return images ordered by their distance to the point
+     */
+    public List<IndexedImage> findWithinRadius(@NotNull PointZ point, double radius) {
+        List<IndexedImage> images;
+
+        lock.readLock().lock();
+        try {
+            images = withinRadius(point.getX(), point.getY(), point.getZ(), radius);
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        images.sort(Comparator.comparingDouble(image ->
+                image.distanceSquared(point.getX(), point.getY(), point.getZ())));
+
+        return images;
+    }
+
+    /**
+     * Picks one image of each Morton cell of given level in the sphere.
+     *
+     * @return representatives ordered by their distance to the point
+     */
+    public List<IndexedImage> findSample(@NotNull PointZ point, double radius, int level) {
+        List<IndexedImage> images;
+
+        lock.readLock().lock();
+        try {
+            var cells = new HashSet<Long>();
+            images = tree.sample(point.getX(), point.getY(), point.getZ(), radius, level, cells);
+
+            var base = snapshot;
+            if (base != null) {
+                images.addAll(withUrls(base.sample(point.getX(), point.getY(), point.getZ(), radius, level,
+                        cells, nodes::containsKey)));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        images.sort(Comparator.comparingDouble(image ->
+                image.distanceSquared(point.getX(), point.getY(), point.getZ())));
+
+        return images;
+    }
+
+    /**
+     * Runs many radius searches in a single traversal of the index.
+     *
+     * @param queries {x, y, z, radius} of each query
+     * @return images of each query ordered by their distance to its point
+     */
+    public List<List<IndexedImage>> findWithinRadii(@NotNull List<double[]> queries) {
+        List<List<IndexedImage>> results;
+
+        lock.readLock().lock();
+        try {
+            results = tree.withinRadii(queries);
+
+            var base = snapshot;
+            if (base != null) {
+                for (int i = 0; i < queries.size(); i++) {
+                    var query = queries.get(i);
+                    results.get(i).addAll(withUrls(base.withinRadius(query[0], query[1], query[2], query[3],
+                            nodes::containsKey)));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        for (int i = 0; i < queries.size(); i++) {
+            var query = queries.get(i);
+            results.get(i).sort(Comparator.comparingDouble(image ->
+                    image.distanceSquared(query[0], query[1], query[2])));
+        }
+
+        return results;
+    }
+
+    /**
+     * Finds the next page of images in the sphere which come after the cursor. Only
+     * a heap of limit images is kept, so the whole sphere is never sorted.
+     *
+     * @param cursor last image of the previous page, null for the first page
+     * @return at most limit images ordered by their distance to the point and id
+     */
+    public List<IndexedImage> findWithinRadiusAfter(@NotNull PointZ point, double radius,
+                                                    DistanceCursor cursor, int limit) {
+        var order = Comparator.comparingDouble((IndexedImage image) ->
+                image.distanceSquared(point.getX(), point.getY(), point.getZ())
+        ).thenComparingLong(IndexedImage::getId);
+        var heap = new PriorityQueue<IndexedImage>(limit + 1, order.reversed());
+
+        lock.readLock().lock();
+        try {
+            for (var image : withinRadius(point.getX(), point.getY(), point.getZ(), radius)) {
+                if (cursor != null && !cursor.isAfterCursor(image, point.getX(), point.getY(), point.getZ())) {
+                    continue;
+                }
+
+                heap.add(image);
+                if (heap.size() > limit) {
+                    heap.poll();
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        var images = new ArrayList<>(heap);
+        images.sort(order);
+
+        return images;
+    }
+
+    /**
+     * Finds the k images closest to the point.
+     *
+     * @return images ordered by their distance to the point
+     */
+    public List<IndexedImage> findNearest(@NotNull PointZ point, int k) {
+        List<IndexedImage> images;
+
+        lock.readLock().lock();
+        try {
+            images = tree.nearest(point.getX(), point.getY(), point.getZ(), k);
+
+            var base = snapshot;
+            if (base == null) {
+                return images;
+            }
+            images.addAll(withUrls(base.nearest(point.getX(), point.getY(), point.getZ(), k, nodes::containsKey)));
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        images.sort(Comparator.comparingDouble(image ->
+                image.distanceSquared(point.getX(), point.getY(), point.getZ())));
+
+        return new ArrayList<>(images.subList(0, Math.min(k, images.size())));
+    }
+
+    /**
+     * Answers a radius search from the tree and the snapshot, or by scanning every position
+     * when the bounding cube of the sphere covers a large part of the scene and the trees
+     * could not skip much of it. Must be called with the read lock held.
+     */
+    private List<IndexedImage> withinRadius(double x, double y, double z, double radius) {
+        var base = snapshot;
+        var total = tree.size() + (base != null ? base.size() : 0);
+        var bounds = union(tree.bounds(), base != null ? base.bounds() : null);
+        var scan = bounds != null && total >= imageConfig.getScanMinImages() &&
+                coveredFraction(bounds, new double[]{x, y, z}, radius) >= imageConfig.getScanMinFraction();
+
+        var images = scan && tree.size() >= SCAN_MIN_TREE_SIZE ?
+                columns().withinRadius(x, y, z, radius, scanPool) :
+                tree.withinRadius(x, y, z, radius);
+
+        if (base != null) {
+            images.addAll(withUrls(scan ?
+                    base.scan(x, y, z, radius, nodes::containsKey, scanPool) :
+                    base.withinRadius(x, y, z, radius, nodes::containsKey)));
+        }
+
+        return images;
+    }
+
+    private static double[] union(double[] a, double[] b) {
+        if (a == null || b == null) {
+            return a != null ? a : b;
+        }
+
+        var bounds = new double[6];
+        for (int i = 0; i < 3; i++) {
+            bounds[i] = Math.min(a[i], b[i]);
+            bounds[i + 3] = Math.max(a[i + 3], b[i + 3]);
+        }
+
+        return bounds;
+    }
+
+    private List<IndexedImage> withUrls(List<IndexedImage> images) {
+        if (!snapshotUrls.isEmpty()) {
+            for (var image : images) {
+                if (image.getUrl() == null) {
+                    image.setUrl(snapshotUrls.get(image.getId()));
+                }
+            }
+        }
+
+        return images;
+    }
+
+    /**
+     * Keeps the url resolved for an image of the snapshot until its row is replayed, images
+     * of the tree keep it themselves.
+     */
+    public void rememberUrl(@NotNull IndexedImage image) {
+        if (snapshot != null && image.getUrl() != null) {
+            snapshotUrls.put(image.getId(), image.getUrl());
+        }
+    }
+
+    private static double coveredFraction(double[] bounds, double[] point, double radius) {
+        var fraction = 1d;
+        for (int i = 0; i < 3; i++) {
+            var min = bounds[i];
+            var max = bounds[i + 3];
+            var overlap = Math.min(max, point[i] + radius) - Math.max(min, point[i] - radius);
+            if (overlap < 0) {
+                return 0;
+            }
+            if (max > min) {
+                fraction *= overlap / (max - min);
+            }
+        }
+
+        return fraction;
+    }
+
+    private CoordinateColumns<IndexedImage> columns() {
+        var current = columns;
+        if (current != null) {
+            return current;
+        }
+
+        // Built lazily after uploads, the read lock held by the caller keeps the tree unchanged
+        synchronized (columnsMonitor) {
+            if (columns == null) {
+                columns = new CoordinateColumns<>(tree.values());
+            }
+
+            return columns;
+        }
+    }
+
+    /**
+     * Puts given rows into the index once the current transaction is committed,
+     * or immediately if there is no transaction.
+     *
+     * @param indexed saved rows
+     */
+    public void indexAfterCommit(@NotNull List<IndexedImage> indexed) {
+        if (!isEnabled() || indexed.isEmpty()) {
+            return;
+        }
+
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            index(indexed);
+            return;
+        }
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                index(indexed);
+            }
+        });
+    }
+
+    /**
+     * Reads the rows updated since the last load into the index once the current
+     * transaction is committed, for imports which are too large to be listed.
+     *
+     * @param startedAt start of the transaction, its rows are replayed however long it took
+     */
+    public void refreshAfterCommit(long startedAt) {
+        if (!isEnabled()) {
+            return;
+        }
+
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            replay(startedAt);
+            return;
+        }
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                replay(startedAt);
+            }
+        });
+    }
+
+    private void index(List<IndexedImage> images) {
+        lock.writeLock().lock();
+        try {
+            for (var image : images) {
+                var old = nodes.get(image.getName());
+                // Replays read the rows of their margin again
+                if (old != null && isSame(old.getValue(), image)) {
+                    continue;
+                }
+                if (old != null) {
+                    tree.remove(old);
+                }
+                nodes.put(image.getName(), tree.insert(image));
+            }
+
+            if (tree.needsRebuild()) {
+                rebuild(tree.values());
+            }
+            columns = null;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static boolean isSame(IndexedImage indexed, IndexedImage image) {
+        return indexed.getId() == image.getId() &&
+                indexed.getX() == image.getX() &&
+                indexed.getY() == image.getY() &&
+                indexed.getZ() == image.getZ() &&
+                Objects.equals(indexed.getUrl(), image.getUrl());
+    }
+
+    private void rebuild(List<IndexedImage> images) {
+        columns = null;
+        nodes.clear();
+        for (var node : tree.build(images)) {
+            nodes.put(node.getValue().getName(), node);
+        }
+    }
+}
@@ -1,86 +1,553 @@
 package com.image.backend.service;
 
-import com.image.backend.dto.image.ImageRequest;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SequenceWriter;
+import com.image.backend.config.ImageConfig;
+import com.image.backend.dto.PageFilter;
+import com.image.backend.dto.image.FrustumRequest;
+import com.image.backend.dto.image.ImagePage;
+import com.image.backend.dto.image.ImageQuery;
+import com.image.backend.dto.image.ImageQueryBatchResponse;
 import com.image.backend.dto.image.PointZ;
-import com.image.backend.dto.message.BasicResponse;
+import com.image.backend.enums.EErrorCode;
+import com.image.backend.enums.ESearchStrategy;
+import com.image.backend.util.service.storage.s3.S3AsyncService;
 import com.image.backend.util.service.storage.s3.S3Service;
 import com.image.backend.dto.Response;
-import com.image.backend.model.Image_;
+import com.image.backend.model.Image;
 import com.image.backend.repository.ImageRepository;
+import com.image.backend.repository.ImageSpecifications;
 import com.image.backend.util.StringUtil;
+import com.image.backend.util.spatial.DistanceCursor;
+import com.image.backend.util.spatial.Frustum;
+import com.image.backend.util.spatial.IndexedImage;
+import com.image.backend.util.spatial.KdTree;
+import com.image.backend.util.spatial.MortonCode;
+import com.image.backend.validator.ValidationResult;
 import lombok.AllArgsConstructor;
+import org.springframework.data.jpa.domain.Specification;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.TransactionDefinition;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionTemplate;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 @Service
 @AllArgsConstructor
 public class ImageService {
 
+    private static final double DEFAULT_RADIUS = 5.0;
+
+    private static final int MAX_NEAREST_COUNT = 1000;
+
+    private static final int MAX_BATCH_QUERIES = 500;
+
+    private static final int MAX_SAMPLE_SIZE = 10000;
+
+    private static final double INITIAL_NEAREST_RADIUS = 5.0;
+
+    private static final int MAX_MORTON_RANGES = 32;
+
+    // Diagonal of the space the Morton codes can represent, larger spheres find nothing more
+    private static final double MAX_RADIUS = MortonCode.cellSize(MortonCode.MAX_LEVEL + 1) * Math.sqrt(3);
+
+    private static final int DEFAULT_PAGE_SIZE = 20;
+
+    private static final int MAX_PAGE_SIZE = 1000;
+
+    private static final int STREAM_FETCH_SIZE = 500;
+
+    private static final int STREAM_FLUSH_INTERVAL = 100;
+
     private final S3Service s3Service;
 
+    private final S3AsyncService s3AsyncService;
+
     private final ImageRepository imageRepository;
 
-    @Transactional
-    public Response<BasicResponse> uploadBatch(List<ImageRequest> body) {
+    private final ImageIndexService imageIndexService;
+
+    private final ImageCacheService imageCacheService;
+
+    private final ImageUrlWriteBackService imageUrlWriteBackService;
+
+    private final ImageConfig imageConfig;
 
+    private final ObjectMapper objectMapper;
 
-        for (ImageRequest imageRequest : body) {
-            imageRepository.saveOrUpdate(
-                    imageRequest.getName(),
-                    imageRequest.getPoint().getX(),
-                    imageRequest.getPoint().getY(),
-                    imageRequest.getPoint().getZ());
+    private final TransactionTemplate transactionTemplate;
+
+    @Transactional(readOnly = true)
+    public Response<List<String>> getImages(PointZ point, Double radius, Integer maxResults, Integer lod) {
+        var result = validateRadius(radius);
+        if (result.isNotValid()) {
+            return Response.notOk(result.getMessage(), EErrorCode.BAD_REQUEST);
+        }
+
+        if (maxResults == null && lod == null) {
+            return Response.ok(resolveUrls(findImages(point, radius)));
         }
 
-        return Response.ok(new BasicResponse("Successfully uploaded"));
+        if (maxResults != null && (maxResults <= 0 || maxResults > MAX_SAMPLE_SIZE)) {
+            return Response.notOk("max_results must be between 1 and " + MAX_SAMPLE_SIZE, EErrorCode.BAD_REQUEST);
+        }
+        if (lod != null && (lod < 0 || lod > MortonCode.MAX_LEVEL)) {
+            return Response.notOk("lod must be between 0 and " + MortonCode.MAX_LEVEL, EErrorCode.BAD_REQUEST);
+        }
+
+        // Both strategies keep the nearest cells
+        var level = lod != null ? lod : MortonCode.levelFor(radius, maxResults);
+        var limit = maxResults != null ? maxResults : MAX_SAMPLE_SIZE;
+        var images = imageIndexService.isEnabled() ?
+                imageIndexService.findSample(point, radius, level) :
+                findSampleFromDatabase(point, radius, level, limit);
+
+        if (images.size() > limit) {
+            images = images.subList(0, limit);
+        }
+
+        return Response.ok(resolveUrls(images));
     }
 
-    @Transactional
-    public Response<List<String>> getImages(PointZ point, Double radius) {
+    /**
+     * The database groups the rows in the sphere by their Morton cell and hands out one id
+     * per cell, only those rows are loaded.
+     */
+    private List<IndexedImage> findSampleFromDatabase(PointZ point, Double radius, int level, int limit) {
+        var ids = imageRepository.findCellRepresentativeIds(
+                databaseCandidates(point, radius).and(ImageSpecifications.inSphere(point, radius)),
+                point,
+                level,
+                limit
+        );
+
+        return toIndexed(imageRepository.findAllById(ids)).stream()
+                .sorted(Comparator.comparingDouble(image ->
+                        image.distanceSquared(point.getX(), point.getY(), point.getZ())))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Answers many radius searches at once. The index answers them in a single traversal,
+     * databases in a single query whose rows are distributed to the queries here. Every
+     * image is resolved once and its url is listed once.
+     */
+    @Transactional(readOnly = true)
+    public Response<ImageQueryBatchResponse> queryBatch(List<ImageQuery> body) {
+        if (body == null || body.isEmpty() || body.size() > MAX_BATCH_QUERIES) {
+            return Response.notOk("number of queries must be between 1 and " + MAX_BATCH_QUERIES,
+                    EErrorCode.BAD_REQUEST);
+        }
+
+        var queries = new ArrayList<double[]>(body.size());
+        for (var query : body) {
+            var point = query.getPoint();
+            if (point == null || point.getX() == null || point.getY() == null || point.getZ() == null) {
+                return Response.notOk("point of every query is required", EErrorCode.BAD_REQUEST);
+            }
 
-        var images =
-                imageRepository.findAll((root, criteriaQuery, criteriaBuilder) ->
-                {
+            var radius = query.getRadius() != null ? query.getRadius() : DEFAULT_RADIUS;
+            var result = validateRadius(radius);
+            if (result.isNotValid()) {
+                return Response.notOk(result.getMessage(), EErrorCode.BAD_REQUEST);
+            }
+            queries.add(new double[]{point.getX(), point.getY(), point.getZ(), radius});
+        }
 
-                    criteriaQuery.orderBy(
-                            criteriaBuilder.asc(
-                                    criteriaBuilder.abs(criteriaBuilder.diff(root.get(Image_.x), point.getX()))),
-                            criteriaBuilder.asc(
-                                    criteriaBuilder.abs(criteriaBuilder.diff(root.get(Image_.y), point.getY()))),
-                            criteriaBuilder.asc(
-                                    criteriaBuilder.abs(criteriaBuilder.diff(root.get(Image_.z), point.getZ())))
-                    );
+        var results = imageIndexService.isEnabled() ?
+                imageIndexService.findWithinRadii(queries) :
+                findWithinRadiiFromDatabase(queries);
 
-                    return criteriaBuilder.and(
-                            criteriaBuilder.lessThanOrEqualTo(criteriaBuilder.abs(
-                                    criteriaBuilder.diff(root.get(Image_.x), point.getX())
-                            ), radius),
-                            criteriaBuilder.lessThanOrEqualTo(criteriaBuilder.abs(
-                                    criteriaBuilder.diff(root.get(Image_.y), point.getY())
-                            ), radius),
-                            criteriaBuilder.lessThanOrEqualTo(criteriaBuilder.abs(
-                                    criteriaBuilder.diff(root.get(Image_.z), point.getZ())
-                            ), radius)
-                    );
-                });
+        resolvePendingUrls(results.stream().flatMap(List::stream).collect(Collectors.toList()));
 
         var urls = new ArrayList<String>();
+        var urlIndexes = new HashMap<Long, Integer>();
+        var indexes = new LinkedHashMap<Integer, List<Integer>>();
+
+        for (int i = 0; i < results.size(); i++) {
+            var queryIndexes = new ArrayList<Integer>();
 
-        images.forEach(image -> {
-            if (StringUtil.isValid(image.getUrl())) {
-                urls.add(image.getUrl());
-            } else {
-                var url = s3Service.getS3Url(image.getName());
-                if (url != null) {
-                    image.setUrl(url.toExternalForm());
-                    urls.add(image.getUrl());
+            for (var image : results.get(i)) {
+                var index = urlIndexes.get(image.getId());
+                if (index == null) {
+                    var url = image.getUrl();
+                    index = StringUtil.isValid(url) ? urls.size() : -1;
+                    if (index >= 0) {
+                        urls.add(url);
+                    }
+                    urlIndexes.put(image.getId(), index);
                 }
+
+                if (index >= 0) {
+                    queryIndexes.add(index);
+                }
+            }
+
+            indexes.put(i, queryIndexes);
+        }
+
+        return Response.ok(new ImageQueryBatchResponse(urls, indexes));
+    }
+
+    private List<List<IndexedImage>> findWithinRadiiFromDatabase(List<double[]> queries) {
+        var candidates = queries.stream()
+                .map(query -> databaseCandidates(PointZ.of(query[0], query[1], query[2]), query[3]))
+                .collect(Collectors.toList());
+
+        var rows = new KdTree<IndexedImage>();
+        rows.build(toIndexed(imageRepository.findAll(ImageSpecifications.anyOf(candidates))));
+
+        var results = rows.withinRadii(queries);
+        for (int i = 0; i < queries.size(); i++) {
+            var query = queries.get(i);
+            results.get(i).sort(Comparator.comparingDouble(image ->
+                    image.distanceSquared(query[0], query[1], query[2])));
+        }
+
+        return results;
+    }
+
+    /**
+     * Finds the images visible from the camera. The sphere bounding the frustum is looked up
+     * with the configured search strategy, and the images outside the frustum are culled here.
+     *
+     * @return urls ordered by the distance to the camera
+     */
+    @Transactional(readOnly = true)
+    public Response<List<String>> getFrustumImages(FrustumRequest body) {
+        var result = validateFrustum(body);
+        if (result.isNotValid()) {
+            return Response.notOk(result.getMessage(), EErrorCode.BAD_REQUEST);
+        }
+
+        var position = body.getPosition();
+        var orientation = body.getOrientation();
+        var frustum = new Frustum(
+                position.getX(), position.getY(), position.getZ(),
+                orientation.getX(), orientation.getY(), orientation.getZ(), orientation.getW(),
+                body.getFov(),
+                body.getAspect() != null ? body.getAspect() : 1.0d,
+                body.getNear(),
+                body.getFar()
+        );
+
+        if (validateRadius(frustum.getBoundingRadius()).isNotValid()) {
+            return Response.notOk("frustum must fit in a sphere of radius at most " + (long) MAX_RADIUS, EErrorCode.BAD_REQUEST);
+        }
+
+        var center = frustum.getCenter();
+        var images = findImages(PointZ.of(center[0], center[1], center[2]), frustum.getBoundingRadius()).stream()
+                .filter(frustum::contains)
+                .sorted(Comparator.comparingDouble(frustum::distanceSquared))
+                .collect(Collectors.toList());
+
+        return Response.ok(resolveUrls(images));
+    }
+
+    private ValidationResult validateFrustum(FrustumRequest body) {
+        var position = body.getPosition();
+        var orientation = body.getOrientation();
+
+        if (position == null || position.getX() == null || position.getY() == null || position.getZ() == null) {
+            return ValidationResult.failed("position is required");
+        }
+        if (orientation == null || orientation.getX() == null || orientation.getY() == null ||
+                orientation.getZ() == null || orientation.getW() == null) {
+            return ValidationResult.failed("orientation is required");
+        }
+        if (orientation.getX() == 0 && orientation.getY() == 0 && orientation.getZ() == 0 && orientation.getW() == 0) {
+            return ValidationResult.failed("orientation must not be a zero quaternion");
+        }
+        if (body.getFov() == null || body.getFov() <= 0 || body.getFov() >= 180) {
+            return ValidationResult.failed("fov must be between 0 and 180");
+        }
+        if (body.getAspect() != null && body.getAspect() <= 0) {
+            return ValidationResult.failed("aspect must be positive");
+        }
+        if (body.getNear() == null || body.getFar() == null || body.getNear() < 0 || body.getFar() <= body.getNear()) {
+            return ValidationResult.failed("near must not be negative and far must be greater than near");
+        }
+
+        return ValidationResult.success();
+    }
+
+    /**
+     * Radius of a search must be positive and at most the diagonal of the scene.
+     */
+    public ValidationResult validateRadius(Double radius) {
+        if (radius == null || !Double.isFinite(radius) || radius <= 0 || radius > MAX_RADIUS) {
+            return ValidationResult.failed("radius must be positive and at most " + (long) MAX_RADIUS);
+        }
+
+        return ValidationResult.success();
+    }
+
+    /**
+     * Writes urls of the images in the sphere as newline delimited JSON while they are read.
+     * Database strategies read the rows through a forward-only cursor, so neither the rows
+     * nor the urls are collected in memory. The radius must be checked with
+     * {@link #validateRadius} before the response is started.
+     */
+    @Transactional(readOnly = true)
+    public void streamImages(PointZ point, Double radius, OutputStream outputStream) throws IOException {
+        try (var writer = objectMapper.writer().withRootValueSeparator("\n").writeValues(outputStream)) {
+            if (imageIndexService.isEnabled()) {
+                writeUrls(imageIndexService.findWithinRadius(point, radius).stream(), writer);
+                return;
+            }
+
+            var specification = databaseCandidates(point, radius)
+                    .and(ImageSpecifications.inSphereAfter(point, radius, null));
+
+            try (var images = imageRepository.stream(specification, STREAM_FETCH_SIZE)) {
+                writeUrls(images.map(IndexedImage::of), writer);
+            }
+        }
+    }
+
+    private void writeUrls(Stream<IndexedImage> images, SequenceWriter writer) throws IOException {
+        var written = 0;
+
+        for (var iterator = images.iterator(); iterator.hasNext(); ) {
+            var url = resolveUrl(iterator.next());
+            if (url == null) {
+                continue;
+            }
+
+            writer.write(url);
+            if (written++ % STREAM_FLUSH_INTERVAL == 0) {
+                writer.flush();
+            }
+        }
+    }
+
+    @Transactional(readOnly = true)
+    public Response<List<String>> getNearestImages(PointZ point, Integer k) {
+        if (k == null || k <= 0 || k > MAX_NEAREST_COUNT) {
+            return Response.notOk("k must be between 1 and " + MAX_NEAREST_COUNT, EErrorCode.BAD_REQUEST);
+        }
+
+        var images = imageIndexService.isEnabled() ?
+                imageIndexService.findNearest(point, k) :
+                findNearestFromDatabase(point, k);
+
+        return Response.ok(resolveUrls(images));
+    }
+
+    @Transactional(readOnly = true)
+    public Response<ImagePage> getImagePage(PointZ point, Double radius, PageFilter pageFilter) {
+        var result = validateRadius(radius);
+        if (result.isNotValid()) {
+            return Response.notOk(result.getMessage(), EErrorCode.BAD_REQUEST);
+        }
+
+        var pageSize = pageFilter.getPage_size() != null ? pageFilter.getPage_size() : DEFAULT_PAGE_SIZE;
+        if (pageSize <= 0 || pageSize > MAX_PAGE_SIZE) {
+            return Response.notOk("page_size must be between 1 and " + MAX_PAGE_SIZE, EErrorCode.BAD_REQUEST);
+        }
+
+        DistanceCursor cursor = null;
+        if (StringUtil.isValid(pageFilter.getCursor())) {
+            cursor = DistanceCursor.decode(pageFilter.getCursor());
+            if (cursor == null) {
+                return Response.notOk("cursor is not valid", EErrorCode.BAD_REQUEST);
+            }
+        }
+
+        var images = imageIndexService.isEnabled() ?
+                imageIndexService.findWithinRadiusAfter(point, radius, cursor, pageSize) :
+                findImagePageFromDatabase(point, radius, cursor, pageSize);
+
+        String nextCursor = null;
+        if (images.size() == pageSize) {
+            var last = images.get(images.size() - 1);
+            nextCursor = DistanceCursor.after(last, point.getX(), point.getY(), point.getZ()).encode();
+        }
+
+        return Response.ok(new ImagePage(resolveUrls(images), nextCursor));
+    }
+
+    /**
+     * Databases can not run a nearest neighbour search on the coordinate columns,
+     * so the radius is doubled until the sphere contains k images, every located image
+     * or the whole representable space.
+     */
+    private List<IndexedImage> findNearestFromDatabase(PointZ point, int k) {
+        var total = imageRepository.count(ImageSpecifications.isLocated());
+        var radius = INITIAL_NEAREST_RADIUS;
+
+        while (true) {
+            var images = findImages(point, radius);
+            images.sort(Comparator.comparingDouble(image ->
+                    image.distanceSquared(point.getX(), point.getY(), point.getZ())));
+
+            var found = images.size() >= k &&
+                    images.get(k - 1).distanceSquared(point.getX(), point.getY(), point.getZ()) <= radius * radius;
+
+            if (found || images.size() >= total || radius >= MAX_RADIUS) {
+                return images.subList(0, Math.min(k, images.size()));
+            }
+
+            radius *= 2;
+        }
+    }
+
+    private List<IndexedImage> findImages(PointZ point, Double radius) {
+        return imageCacheService.find(point, radius, this::loadImages);
+    }
+
+    /**
+     * Database searches which fill the cache run in their own read-write transaction, so
+     * they read the primary and never cache rows a lagging replica has not caught up with,
+     * see JPAConfig#dataSource. Uncached searches stay in the read-only transaction of the
+     * caller, and the index is in memory.
+     */
+    private List<IndexedImage> loadImages(PointZ point, Double radius) {
+        if (!imageConfig.isCacheEnabled() || imageConfig.getSearchStrategy() == ESearchStrategy.INDEX) {
+            return searchImages(point, radius);
+        }
+
+        var template = new TransactionTemplate(Objects.requireNonNull(transactionTemplate.getTransactionManager()),
+                transactionTemplate);
+        template.setPropagationBehavior(TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+        template.setReadOnly(false);
+
+        return template.execute(status -> searchImages(point, radius));
+    }
+
+    private List<IndexedImage> searchImages(PointZ point, Double radius) {
+        switch (imageConfig.getSearchStrategy()) {
+            case INDEX:
+                return imageIndexService.findWithinRadius(point, radius);
+            case SPATIAL:
+                return toIndexed(imageRepository.findWithinRadius(point.getX(), point.getY(), point.getZ(), radius));
+            case MORTON:
+                return findImagesByMorton(point, radius);
+            default:
+                return findImagesByCriteria(point, radius);
+        }
+    }
+
+    /**
+     * Fetches the bounding cube with plain range predicates so that the coordinate index
+     * can serve it, then trims the corners of the cube and orders the rows by distance.
+     */
+    private List<IndexedImage> findImagesByCriteria(PointZ point, Double radius) {
+        var images = imageRepository.findAll(ImageSpecifications.inBox(point, radius));
+
+        return trimToSphere(toIndexed(images), point, radius);
+    }
+
+    /**
+     * Reads only the Morton key ranges covering the bounding cube, which needs nothing but
+     * a B-tree index on the morton column, then trims the rows to the sphere.
+     */
+    private List<IndexedImage> findImagesByMorton(PointZ point, Double radius) {
+        var images = imageRepository.findAll(ImageSpecifications.inMortonRanges(mortonRanges(point, radius)));
+
+        return trimToSphere(toIndexed(images), point, radius);
+    }
+
+    /**
+     * Keyset pagination in the database, the Morton strategy prunes with its ranges and
+     * the others with the coordinate index.
+     */
+    private List<IndexedImage> findImagePageFromDatabase(PointZ point, Double radius,
+                                                         DistanceCursor cursor, int limit) {
+        var images = imageRepository.findAll(
+                databaseCandidates(point, radius).and(ImageSpecifications.inSphereAfter(point, radius, cursor)),
+                limit
+        );
+
+        return toIndexed(images);
+    }
+
+    private Specification<Image> databaseCandidates(PointZ point, Double radius) {
+        return imageConfig.getSearchStrategy() == ESearchStrategy.MORTON ?
+                ImageSpecifications.inMortonRanges(mortonRanges(point, radius)) :
+                ImageSpecifications.inBox(point, radius);
+    }
+
+    private List<long[]> mortonRanges(PointZ point, Double radius) {
+        return MortonCode.ranges(
+                point.getX() - radius, point.getY() - radius, point.getZ() - radius,
+                point.getX() + radius, point.getY() + radius, point.getZ() + radius,
+                MAX_MORTON_RANGES
+        );
+    }
+
+    private List<IndexedImage> trimToSphere(List<IndexedImage> images, PointZ point, Double radius) {
+        return images.stream()
+                .filter(image -> image.distanceSquared(point.getX(), point.getY(), point.getZ()) <= radius * radius)
+                .sorted(Comparator.comparingDouble(image ->
+                        image.distanceSquared(point.getX(), point.getY(), point.getZ())))
+                .collect(Collectors.toList());
+    }
+
+    private List<IndexedImage> toIndexed(List<Image> images) {
+        return images.stream().map(IndexedImage::of).collect(Collectors.toList());
+    }
+
+    private List<String> resolveUrls(List<IndexedImage> images) {
+        resolvePendingUrls(images);
+
+        return images.stream()
+                .map(IndexedImage::getUrl)
+                .filter(StringUtil::isValid)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Resolves the urls of the images which have none in a single fan-out, so a response
+     * waits for about one round trip rather than one per image and prefix.
+     */
+    private void resolvePendingUrls(Collection<IndexedImage> images) {
+        var pending = images.stream()
+                .filter(image -> !StringUtil.isValid(image.getUrl()))
+                .collect(Collectors.toList());
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        var urls = s3AsyncService.getS3Urls(pending.stream()
+                .map(IndexedImage::getName)
+                .collect(Collectors.toList())).join();
+
+        for (var image : pending) {
+            var url = urls.get(image.getName());
+            if (url != null) {
+                image.setUrl(url.toExternalForm());
+                imageIndexService.rememberUrl(image);
+                imageUrlWriteBackService.enqueue(image.getId(), image.getUrl());
             }
-        });
+        }
+    }
+
+    private String resolveUrl(IndexedImage image) {
+        if (StringUtil.isValid(image.getUrl())) {
+            return image.getUrl();
+        }
+
+        var url = s3Service.getS3Url(image.getName());
+        if (url == null) {
+            return null;
+        }
+
+        image.setUrl(url.toExternalForm());
+        imageIndexService.rememberUrl(image);
+        imageUrlWriteBackService.enqueue(image.getId(), image.getUrl());
 
-        return Response.ok(urls);
+        return image.getUrl();
     }
 }
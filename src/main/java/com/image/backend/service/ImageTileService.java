@@ -0,0 +1,291 @@
+package com.image.backend.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.image.backend.config.ImageConfig;
+import com.image.backend.dto.Response;
+import com.image.backend.dto.image.ImageRequest;
+import com.image.backend.dto.image.PointZ;
+import com.image.backend.dto.image.TileManifest;
+import com.image.backend.enums.EErrorCode;
+import com.image.backend.repository.ImagePosition;
+import com.image.backend.repository.ImageRepository;
+import com.image.backend.repository.ImageSpecifications;
+import com.image.backend.util.spatial.IndexedImage;
+import com.image.backend.util.spatial.MortonCode;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Splits the scene into fixed-size cubic tiles and keeps a serialized manifest of the
+ * images in the most recently requested tiles. After an upload commits, the cached tiles
+ * which contain the previous or the new positions of the uploaded images are patched with
+ * the uploaded rows, the others are served as they are. Uploads of other instances are not
+ * seen by the patches, so tiles are rebuilt once their TTL expires.
+ */
+@Service
+@RequiredArgsConstructor
+public class ImageTileService {
+
+    private final ImageConfig imageConfig;
+
+    private final ImageRepository imageRepository;
+
+    private final ImageIndexService imageIndexService;
+
+    private final ObjectMapper objectMapper;
+
+    private final LinkedHashMap<Key, Tile> tiles = new LinkedHashMap<>(16, 0.75f, true);
+
+    private volatile long generation = 0;
+
+    @EqualsAndHashCode
+    @AllArgsConstructor
+    private static final class Key {
+        private final long x;
+        private final long y;
+        private final long z;
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static final class Tile {
+        private final byte[] body;
+        private final String eTag;
+        private final List<TileManifest.Item> items;
+        private final long expiresAt;
+    }
+
+    public long getMaxAge() {
+        return imageConfig.getTileMaxAge();
+    }
+
+    public Response<Tile> getTile(long x, long y, long z) {
+        if (!isInScene(x) || !isInScene(y) || !isInScene(z)) {
+            return Response.notOk("Tile is out of the scene", EErrorCode.BAD_REQUEST);
+        }
+
+        var key = new Key(x, y, z);
+
+        synchronized (this) {
+            var tile = tiles.get(key);
+            if (tile != null && tile.getExpiresAt() <= System.currentTimeMillis()) {
+                tiles.remove(key);
+                tile = null;
+            }
+            if (tile != null) {
+                return Response.ok(tile);
+            }
+        }
+
+        var loadedGeneration = generation;
+        var tile = build(key);
+
+        synchronized (this) {
+            // An upload committed while the tile was built may be missing from it
+            if (loadedGeneration == generation) {
+                put(key, tile);
+            }
+        }
+
+        return Response.ok(tile);
+    }
+
+    private boolean isInScene(long tile) {
+        var size = imageConfig.getTileSize();
+
+        return (tile + 1) * size > MortonCode.MIN_COORDINATE && tile * size < MortonCode.MAX_COORDINATE;
+    }
+
+    private void put(Key key, Tile tile) {
+        tiles.put(key, tile);
+
+        var iterator = tiles.values().iterator();
+        while (tiles.size() > Math.max(1, imageConfig.getTileMaxEntries()) && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    private Tile build(Key key) {
+        var size = imageConfig.getTileSize();
+        var min = min(key);
+        var expiresAt = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(imageConfig.getTileTtl());
+        var center = PointZ.of(min[0] + size / 2, min[1] + size / 2, min[2] + size / 2);
+
+        List<IndexedImage> images = imageIndexService.isEnabled() ?
+                imageIndexService.findWithinRadius(center, size * Math.sqrt(3) / 2) :
+                imageRepository.findAll(ImageSpecifications.inBox(center, size / 2)).stream()
+                        .map(IndexedImage::of)
+                        .collect(Collectors.toList());
+
+        var items = images.stream()
+                .map(image -> new TileManifest.Item(image.getName(), image.getX(), image.getY(), image.getZ()))
+                .filter(item -> isInside(item, min, size))
+                .collect(Collectors.toList());
+
+        return serialize(key, items, expiresAt);
+    }
+
+    private Tile serialize(Key key, List<TileManifest.Item> items, long expiresAt) {
+        items.sort(Comparator.comparing(TileManifest.Item::getName));
+
+        try {
+            var body = objectMapper.writeValueAsBytes(Response.ok(
+                    new TileManifest(key.x, key.y, key.z, imageConfig.getTileSize(), items)));
+
+            return new Tile(body, eTag(body), items, expiresAt);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Key key(double x, double y, double z) {
+        var size = imageConfig.getTileSize();
+
+        return new Key((long) Math.floor(x / size), (long) Math.floor(y / size), (long) Math.floor(z / size));
+    }
+
+    private double[] min(Key key) {
+        var size = imageConfig.getTileSize();
+
+        return new double[]{key.x * size, key.y * size, key.z * size};
+    }
+
+    private static boolean isInside(TileManifest.Item item, double[] min, double size) {
+        return isInside(item.getX(), min[0], size) &&
+                isInside(item.getY(), min[1], size) &&
+                isInside(item.getZ(), min[2], size);
+    }
+
+    private static boolean isInside(double value, double min, double size) {
+        return value >= min && value < min + size;
+    }
+
+    private static String eTag(byte[] body) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256").digest(body);
+            var builder = new StringBuilder("\"");
+            for (int i = 0; i < 16; i++) {
+                builder.append(String.format("%02x", digest[i]));
+            }
+
+            return builder.append('"').toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Patches the cached tiles which contain the previous or the new positions of the
+     * uploaded images, once the current transaction is committed.
+     *
+     * @param images   uploaded images
+     * @param previous stored positions of the uploaded images which were moved
+     */
+    public void evictAfterCommit(@NotNull Collection<ImageRequest> images, @NotNull Collection<ImagePosition> previous) {
+        if (images.isEmpty()) {
+            return;
+        }
+
+        // Missing coordinates are stored as 0, as in the index
+        var uploaded = new HashMap<String, TileManifest.Item>();
+        for (var image : images) {
+            var point = image.getPoint();
+            uploaded.put(image.getName(), new TileManifest.Item(
+                    image.getName(),
+                    point.getX() != null ? point.getX() : 0,
+                    point.getY() != null ? point.getY() : 0,
+                    point.getZ() != null ? point.getZ() : 0
+            ));
+        }
+        var moved = previous.stream()
+                .map(position -> key(
+                        position.getX() != null ? position.getX() : 0,
+                        position.getY() != null ? position.getY() : 0,
+                        position.getZ() != null ? position.getZ() : 0
+                ))
+                .collect(Collectors.toList());
+
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            update(uploaded, moved);
+            return;
+        }
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                update(uploaded, moved);
+            }
+        });
+    }
+
+    /**
+     * Drops every tile once the current transaction is committed.
+     */
+    public void clearAfterCommit() {
+        if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+            clear();
+            return;
+        }
+
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                clear();
+            }
+        });
+    }
+
+    private synchronized void clear() {
+        generation++;
+
+        tiles.clear();
+    }
+
+    private void update(Map<String, TileManifest.Item> uploaded, List<Key> moved) {
+        var added = uploaded.values().stream()
+                .collect(Collectors.groupingBy(item -> key(item.getX(), item.getY(), item.getZ())));
+
+        synchronized (this) {
+            generation++;
+
+            // Only the tiles which held or now hold an uploaded image can change
+            var keys = new HashSet<>(added.keySet());
+            keys.addAll(moved);
+            for (var key : keys) {
+                var tile = tiles.get(key);
+                if (tile == null) {
+                    continue;
+                }
+
+                var items = new ArrayList<TileManifest.Item>();
+                tile.getItems().stream()
+                        .filter(item -> !uploaded.containsKey(item.getName()))
+                        .forEach(items::add);
+                items.addAll(added.getOrDefault(key, List.of()));
+
+                tiles.put(key, serialize(key, items, tile.getExpiresAt()));
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.image.backend.service;
+
+import com.image.backend.repository.ImageRepository;
+import lombok.RequiredArgsConstructor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PreDestroy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Collects the urls resolved by searches and writes them back in batches, so that search
+ * transactions stay read-only and never wait for row locks.
+ */
+@Service
+@RequiredArgsConstructor
+public class ImageUrlWriteBackService {
+    private static final int BATCH_SIZE = 500;
+
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final ImageRepository imageRepository;
+
+    private final TransactionTemplate transactionTemplate;
+
+    private final ConcurrentHashMap<Long, String> pending = new ConcurrentHashMap<>();
+
+    public void enqueue(long id, String url) {
+        pending.put(id, url);
+    }
+
+    @Scheduled(fixedDelayString = "${soilhm.image.url-write-back.interval:1000}")
+    public void flush() {
+        var batch = new HashMap<Long, String>();
+
+        for (var id : pending.keySet()) {
+            var url = pending.remove(id);
+            if (url == null) {
+                continue;
+            }
+
+            batch.put(id, url);
+            if (batch.size() == BATCH_SIZE) {
+                write(batch);
+                batch = new HashMap<>();
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            write(batch);
+        }
+    }
+
+    private void write(Map<Long, String> batch) {
+        try {
+            transactionTemplate.executeWithoutResult(status -> imageRepository.updateUrls(batch));
+        } catch (RuntimeException e) {
+            // The urls are resolved again by the next search which returns the images
+            logger.warn(String.format("Urls of %d images cannot be written.", batch.size()), e);
+        }
+    }
+
+    @PreDestroy
+    protected void shutdown() {
+        flush();
+    }
+}
@@ -0,0 +1,158 @@
+package com.image.backend.service;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Temporary file which an upload is written to while an import job reads it. The reader
+ * waits for the bytes which are not written yet, so a job which gets a worker right away
+ * imports the body while it is still arriving, and a queued one finds it on disk.
+ * <p>
+ * The file is deleted once both the writer and the reader released it.
+ */
+class ImportSpool {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Path file;
+
+    private final AtomicInteger holders = new AtomicInteger(2);
+
+    private long written = 0;
+
+    private boolean complete = false;
+
+    private Exception failure = null;
+
+    ImportSpool() throws IOException {
+        file = Files.createTempFile("image-import-", ".tmp");
+    }
+
+    /**
+     * Copies the body into the file. Must be called once, by the writer.
+     */
+    void write(@NotNull InputStream body) throws IOException {
+        try (var channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            var buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = body.read(buffer)) >= 0) {
+                channel.write(ByteBuffer.wrap(buffer, 0, read));
+                advance(read);
+            }
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+            throw e;
+        }
+
+        synchronized (this) {
+            complete = true;
+            notifyAll();
+        }
+    }
+
+    private synchronized void advance(int count) {
+        written += count;
+        notifyAll();
+    }
+
+    private synchronized void fail(Exception e) {
+        failure = e;
+        notifyAll();
+    }
+
+    /**
+     * Blocks until bytes after position are written or the body is complete.
+     *
+     * @return number of bytes which can be read after position, 0 at the end of the body
+     */
+    private synchronized long awaitWritten(long position) throws IOException {
+        while (written <= position && !complete && failure == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+
+        if (written <= position && failure != null) {
+            throw new IOException("Upload of the body was aborted", failure);
+        }
+
+        return written - position;
+    }
+
+    /**
+     * Blocks until the whole body is written, for readers which must not wait for it later.
+     */
+    void awaitComplete() throws IOException {
+        awaitWritten(Long.MAX_VALUE);
+    }
+
+    /**
+     * Opens the body for the reader.
+     */
+    InputStream open() throws IOException {
+        var channel = FileChannel.open(file, StandardOpenOption.READ);
+
+        return new InputStream() {
+            private long position = 0;
+
+            @Override
+            public int read() throws IOException {
+                var single = new byte[1];
+
+                return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) throws IOException {
+                if (length == 0) {
+                    return 0;
+                }
+
+                var available = awaitWritten(position);
+                if (available == 0) {
+                    return -1;
+                }
+
+                var read = channel.read(ByteBuffer.wrap(buffer, offset, (int) Math.min(length, available)), position);
+                if (read > 0) {
+                    position += read;
+                }
+
+                return read;
+            }
+
+            @Override
+            public void close() throws IOException {
+                channel.close();
+            }
+        };
+    }
+
+    /**
+     * Deletes the file of a spool which is never read.
+     */
+    void discard() throws IOException {
+        holders.set(0);
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     * Called by the writer and the reader when they are done, the last one deletes the file.
+     */
+    void release() throws IOException {
+        if (holders.decrementAndGet() == 0) {
+            Files.deleteIfExists(file);
+        }
+    }
+}
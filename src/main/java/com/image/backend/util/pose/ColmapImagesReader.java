@@ -0,0 +1,72 @@
+package com.image.backend.util.pose;
+
+import com.image.backend.dto.image.ImageRequest;
+import com.image.backend.dto.image.PointZ;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.InputStream;
+
+/**
+ * Reads COLMAP images.txt files. Each image takes two lines,
+ * "IMAGE_ID QW QX QY QZ TX TY TZ CAMERA_ID NAME" and its 2D points which are skipped.
+ * The pose maps world to camera coordinates, so the position of the image is the
+ * camera center -R^T * t.
+ */
+public class ColmapImagesReader extends PoseReader {
+    private boolean pointsLine = false;
+
+    public ColmapImagesReader(@NotNull InputStream input) {
+        super(input);
+    }
+
+    @Override
+    protected ImageRequest parse(String line, long lineNumber) {
+        if (line.startsWith("#")) {
+            return null;
+        }
+
+        if (pointsLine) {
+            pointsLine = false;
+            return null;
+        }
+        pointsLine = true;
+
+        var fields = line.trim().split("\\s+", 10);
+        if (fields.length < 10) {
+            throw new IllegalArgumentException(String.format("Line %d: expected 10 fields but found %d",
+                    lineNumber, fields.length));
+        }
+
+        var qw = parseDouble(fields[1], lineNumber);
+        var qx = parseDouble(fields[2], lineNumber);
+        var qy = parseDouble(fields[3], lineNumber);
+        var qz = parseDouble(fields[4], lineNumber);
+        var t = new double[]{
+                parseDouble(fields[5], lineNumber),
+                parseDouble(fields[6], lineNumber),
+                parseDouble(fields[7], lineNumber)
+        };
+
+        var norm = Math.sqrt(qw * qw + qx * qx + qy * qy + qz * qz);
+        if (norm == 0) {
+            throw new IllegalArgumentException(String.format("Line %d: rotation is a zero quaternion", lineNumber));
+        }
+        qw /= norm;
+        qx /= norm;
+        qy /= norm;
+        qz /= norm;
+
+        var r = new double[][]{
+                {1 - 2 * (qy * qy + qz * qz), 2 * (qx * qy - qw * qz), 2 * (qx * qz + qw * qy)},
+                {2 * (qx * qy + qw * qz), 1 - 2 * (qx * qx + qz * qz), 2 * (qy * qz - qw * qx)},
+                {2 * (qx * qz - qw * qy), 2 * (qy * qz + qw * qx), 1 - 2 * (qx * qx + qy * qy)}
+        };
+
+        var center = new double[3];
+        for (int i = 0; i < 3; i++) {
+            center[i] = -(r[0][i] * t[0] + r[1][i] * t[1] + r[2][i] * t[2]);
+        }
+
+        return new ImageRequest(fields[9].trim(), PointZ.of(center[0], center[1], center[2]));
+    }
+}
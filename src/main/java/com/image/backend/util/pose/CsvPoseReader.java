@@ -0,0 +1,146 @@
+package com.image.backend.util.pose;
+
+import com.image.backend.dto.image.ImageRequest;
+import com.image.backend.dto.image.PointZ;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Locale;
+
+/**
+ * Reads comma separated "name,x,y,z" rows. If the first row is a header, the columns
+ * are found by their names and other columns are ignored. Fields may be quoted as in
+ * RFC 4180, except that a quoted field can not span lines.
+ */
+public class CsvPoseReader extends PoseReader {
+    private int[] columns = null;
+
+    public CsvPoseReader(@NotNull InputStream input) {
+        super(input);
+    }
+
+    @Override
+    protected ImageRequest parse(String line, long lineNumber) {
+        if (line.isBlank()) {
+            return null;
+        }
+
+        var fields = split(line, lineNumber);
+
+        if (columns == null) {
+            columns = new int[]{0, 1, 2, 3};
+
+            if (fields.length > 1 && !isNumber(fields[1])) {
+                columns = header(fields, lineNumber);
+                return null;
+            }
+        }
+
+        if (fields.length <= Math.max(Math.max(columns[0], columns[1]), Math.max(columns[2], columns[3]))) {
+            throw new IllegalArgumentException(String.format("Line %d: expected name, x, y and z", lineNumber));
+        }
+
+        return new ImageRequest(fields[columns[0]], PointZ.of(
+                parseDouble(fields[columns[1]], lineNumber),
+                parseDouble(fields[columns[2]], lineNumber),
+                parseDouble(fields[columns[3]], lineNumber)
+        ));
+    }
+
+    private static int[] header(String[] fields, long lineNumber) {
+        var names = new String[]{"name", "x", "y", "z"};
+        var columns = new int[]{-1, -1, -1, -1};
+
+        for (int i = 0; i < fields.length; i++) {
+            for (int j = 0; j < names.length; j++) {
+                if (names[j].equals(fields[i].toLowerCase(Locale.ENGLISH))) {
+                    columns[j] = i;
+                }
+            }
+        }
+
+        for (int j = 0; j < names.length; j++) {
+            if (columns[j] < 0) {
+                throw new IllegalArgumentException(String.format("Line %d: header has no %s column",
+                        lineNumber, names[j]));
+            }
+        }
+
+        return columns;
+    }
+
+    private static boolean isNumber(String value) {
+        try {
+            Double.parseDouble(value);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Splits the row at the commas outside of quotes. Quotes in a quoted field are doubled,
+     * and whitespace around the fields is ignored.
+     */
+    private static String[] split(String line, long lineNumber) {
+        var fields = new ArrayList<String>();
+        var length = line.length();
+        var start = 0;
+
+        while (true) {
+            var i = skipWhitespace(line, start);
+
+            if (i < length && line.charAt(i) == '"') {
+                var field = new StringBuilder();
+                i++;
+                while (true) {
+                    if (i >= length) {
+                        throw new IllegalArgumentException(String.format(
+                                "Line %d: quoted field is not closed, fields can not span lines", lineNumber));
+                    }
+
+                    var c = line.charAt(i++);
+                    if (c != '"') {
+                        field.append(c);
+                    } else if (i < length && line.charAt(i) == '"') {
+                        field.append('"');
+                        i++;
+                    } else {
+                        break;
+                    }
+                }
+
+                i = skipWhitespace(line, i);
+                if (i < length && line.charAt(i) != ',') {
+                    throw new IllegalArgumentException(String.format(
+                            "Line %d: unexpected character after quoted field", lineNumber));
+                }
+                fields.add(field.toString());
+            } else {
+                var comma = line.indexOf(',', start);
+                i = comma < 0 ? length : comma;
+
+                var field = line.substring(start, i).trim();
+                if (field.indexOf('"') >= 0) {
+                    throw new IllegalArgumentException(String.format(
+                            "Line %d: quotes are only allowed around a whole field", lineNumber));
+                }
+                fields.add(field);
+            }
+
+            if (i >= length) {
+                return fields.toArray(new String[0]);
+            }
+            start = i + 1;
+        }
+    }
+
+    private static int skipWhitespace(String line, int index) {
+        while (index < line.length() && Character.isWhitespace(line.charAt(index))) {
+            index++;
+        }
+
+        return index;
+    }
+}
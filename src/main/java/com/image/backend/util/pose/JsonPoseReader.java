@@ -0,0 +1,46 @@
+package com.image.backend.util.pose;
+
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.image.backend.dto.image.ImageRequest;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+/**
+ * Reads a JSON array of images, or images one after another, one element at a time.
+ * Every element is checked as the rows of the pose files are, and errors name the line
+ * on which the element starts.
+ */
+public class JsonPoseReader implements Iterator<ImageRequest>, Closeable {
+    private final MappingIterator<ImageRequest> images;
+
+    public JsonPoseReader(@NotNull ObjectMapper objectMapper, @NotNull InputStream input) throws IOException {
+        this.images = objectMapper.readerFor(ImageRequest.class).readValues(input);
+    }
+
+    @Override
+    public boolean hasNext() {
+        return images.hasNext();
+    }
+
+    @Override
+    public ImageRequest next() {
+        // Moves the parser onto the first token of the element
+        images.hasNext();
+        var lineNumber = images.getParser().getTokenLocation().getLineNr();
+
+        var image = images.next();
+        PoseReader.validate(image, lineNumber);
+
+        return image;
+    }
+
+    @Override
+    public void close() throws IOException {
+        images.close();
+    }
+}
@@ -0,0 +1,108 @@
+package com.image.backend.util.pose;
+
+import com.image.backend.dto.image.ImageRequest;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads images from a text pose file line by line, only the current line is held in memory.
+ */
+public abstract class PoseReader implements Iterator<ImageRequest> {
+    private final BufferedReader reader;
+
+    private long lineNumber = 0;
+
+    private ImageRequest next = null;
+
+    protected PoseReader(@NotNull InputStream input) {
+        this.reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Parses a line of the file.
+     *
+     * @return image of the line, null if the line does not describe an image
+     * @throws IllegalArgumentException if the line is malformed
+     */
+    protected abstract ImageRequest parse(String line, long lineNumber);
+
+    @Override
+    public boolean hasNext() {
+        try {
+            while (next == null) {
+                var line = reader.readLine();
+                if (line == null) {
+                    return false;
+                }
+
+                next = parse(line, ++lineNumber);
+                if (next != null) {
+                    validate(next, lineNumber);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        return true;
+    }
+
+    @Override
+    public ImageRequest next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+
+        var image = next;
+        next = null;
+
+        return image;
+    }
+
+    protected static double parseDouble(String value, long lineNumber) {
+        double number;
+        try {
+            number = Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("Line %d: %s is not a number", lineNumber, value));
+        }
+
+        if (!Double.isFinite(number)) {
+            throw new IllegalArgumentException(String.format("Line %d: %s is not a finite number", lineNumber, value));
+        }
+
+        return number;
+    }
+
+    /**
+     * Checks an image read from any pose format. Missing coordinates are stored as 0, but
+     * coordinates which are not finite can not be stored.
+     *
+     * @throws IllegalArgumentException if the image has no name or point, or a coordinate is not finite
+     */
+    static void validate(ImageRequest image, long lineNumber) {
+        if (image == null || image.getName() == null || image.getName().isBlank()) {
+            throw new IllegalArgumentException(String.format("Line %d: name is required", lineNumber));
+        }
+
+        var point = image.getPoint();
+        if (point == null) {
+            throw new IllegalArgumentException(String.format("Line %d: point is required", lineNumber));
+        }
+        if (!isFinite(point.getX()) || !isFinite(point.getY()) || !isFinite(point.getZ())) {
+            throw new IllegalArgumentException(String.format("Line %d: coordinates must be finite", lineNumber));
+        }
+    }
+
+    private static boolean isFinite(Double value) {
+        return value == null || Double.isFinite(value);
+    }
+}
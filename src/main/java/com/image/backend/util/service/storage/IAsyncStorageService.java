@@ -0,0 +1,12 @@
+package com.image.backend.util.service.storage;
+
+import java.net.URL;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+public interface IAsyncStorageService {
+    CompletableFuture<URL> getS3Url(String objName);
+
+    CompletableFuture<Map<String, URL>> getS3Urls(Collection<String> objNames);
+}
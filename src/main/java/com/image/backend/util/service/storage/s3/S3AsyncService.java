@@ -0,0 +1,221 @@
+package com.image.backend.util.service.storage.s3;
+
+import com.image.backend.config.AwsConfig;
+import com.image.backend.util.service.storage.IAsyncStorageService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+
+import javax.annotation.PreDestroy;
+import java.net.URL;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Collectors;
+
+/**
+ * Resolves object urls with non-blocking requests. Names which are not in the key index of
+ * {@link S3Service} are probed in every prefix at once, and the hit of the first prefix in
+ * order completes the lookup.
+ */
+@Component
+public class S3AsyncService implements IAsyncStorageService {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final AwsConfig awsConfig;
+    private final S3Service s3Service;
+    private final S3AsyncClient s3AsyncClient;
+
+    public S3AsyncService(AwsConfig awsConfig, S3Service s3Service) {
+        this.awsConfig = awsConfig;
+        this.s3Service = s3Service;
+        s3AsyncClient = S3AsyncClient.builder()
+                .credentialsProvider(StaticCredentialsProvider.create(awsConfig.getCredentials()))
+                .endpointOverride(awsConfig.getEndpoint())
+                .region(Region.of(awsConfig.getRegion()))
+                .build();
+    }
+
+    /**
+     * @return url of the object, null if it is not found in any prefix
+     */
+    @Override
+    public CompletableFuture<URL> getS3Url(String name) {
+        var indexed = s3Service.getIndexedUrl(name);
+        if (indexed != null) {
+            return CompletableFuture.completedFuture(indexed);
+        }
+
+        if (s3Service.isKnownMissing(name)) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        var prefixes = s3Service.getPrefixes();
+        var result = new CompletableFuture<URL>();
+        if (prefixes.isEmpty()) {
+            result.complete(null);
+            return result;
+        }
+
+        var keys = prefixes.stream().map(prefix -> prefix + name).collect(Collectors.toList());
+        s3Service.countProbes(keys.size());
+        var probes = keys.stream()
+                .map(key -> s3AsyncClient.headObject(HeadObjectRequest.builder()
+                        .bucket(awsConfig.getBucketName()).key(key).build()))
+                .collect(Collectors.toList());
+
+        var lookup = new Lookup(name, keys, probes);
+        for (int i = 0; i < probes.size(); i++) {
+            var index = i;
+            probes.get(i).whenComplete((response, e) -> lookup.settle(index, e));
+        }
+
+        return lookup.result;
+    }
+
+    /**
+     * Outcome of the probes of one name. As with the HEAD requests of {@link S3Service},
+     * the first prefix in order wins: a hit completes the lookup once every earlier probe
+     * has missed, and only the later probes are cancelled.
+     */
+    private final class Lookup {
+        private static final int PENDING = 0;
+        private static final int HIT = 1;
+        private static final int MISSED = 2;
+        private static final int FAILED = 3;
+
+        private final String name;
+        private final List<String> keys;
+        private final List<CompletableFuture<HeadObjectResponse>> probes;
+        private final int[] states;
+        private final Throwable[] errors;
+        private final CompletableFuture<URL> result = new CompletableFuture<>();
+
+        private Lookup(String name, List<String> keys, List<CompletableFuture<HeadObjectResponse>> probes) {
+            this.name = name;
+            this.keys = keys;
+            this.probes = probes;
+            this.states = new int[probes.size()];
+            this.errors = new Throwable[probes.size()];
+        }
+
+        private synchronized void settle(int index, Throwable e) {
+            states[index] = e == null ? HIT : isNotFound(e) ? MISSED : FAILED;
+            errors[index] = e;
+
+            if (result.isDone()) {
+                return;
+            }
+
+            for (int i = 0; i < states.length; i++) {
+                switch (states[i]) {
+                    case PENDING:
+                        return;
+                    case HIT:
+                        s3Service.addKey(name, keys.get(i));
+                        result.complete(s3Service.getUrl(keys.get(i)));
+                        cancelAfter(i);
+                        return;
+                    case FAILED:
+                        result.completeExceptionally(errors[i]);
+                        cancelAfter(i);
+                        return;
+                    default:
+                }
+            }
+
+            s3Service.markMissing(name);
+            result.complete(null);
+        }
+
+        private void cancelAfter(int index) {
+            for (int i = index + 1; i < probes.size(); i++) {
+                probes.get(i).cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Resolves the names with at most {@code soilhm.aws.s3.async.max-concurrency} lookups in
+     * flight. Names which fail to resolve are logged and left out.
+     *
+     * @return urls of the found objects by their names
+     */
+    @Override
+    public CompletableFuture<Map<String, URL>> getS3Urls(Collection<String> names) {
+        var urls = new ConcurrentHashMap<String, URL>();
+        var pending = new ConcurrentLinkedQueue<String>();
+
+        // Indexed names are resolved here, so the chains below only wait on requests
+        for (var name : new LinkedHashSet<>(names)) {
+            var indexed = s3Service.getIndexedUrl(name);
+            if (indexed != null) {
+                urls.put(name, indexed);
+            } else {
+                pending.add(name);
+            }
+        }
+
+        var lookups = Math.min(pending.size(), Math.max(1, awsConfig.getAsyncMaxConcurrency()));
+        var chains = new CompletableFuture<?>[lookups];
+        for (int i = 0; i < lookups; i++) {
+            chains[i] = resolveNext(pending, urls);
+        }
+
+        return CompletableFuture.allOf(chains).thenApply(ignored -> urls);
+    }
+
+    private CompletableFuture<Void> resolveNext(Queue<String> pending, Map<String, URL> urls) {
+        // Known missing names complete at once, they are drained here so that a long run of
+        // them does not recurse through thenCompose on the stack of the calling thread
+        String name;
+        while ((name = pending.poll()) != null) {
+            var lookup = getS3Url(name);
+            var polled = name;
+            if (!lookup.isDone()) {
+                return lookup
+                        .handle((url, e) -> {
+                            record(polled, url, e, urls);
+                            return null;
+                        })
+                        .thenCompose(ignored -> resolveNext(pending, urls));
+            }
+
+            lookup.whenComplete((url, e) -> record(polled, url, e, urls));
+        }
+
+        return CompletableFuture.completedFuture(null);
+    }
+
+    private void record(String name, URL url, Throwable e, Map<String, URL> urls) {
+        if (e != null) {
+            logger.warn(String.format("Url of %s cannot be resolved.", name), e);
+        } else if (url != null) {
+            urls.put(name, url);
+        }
+    }
+
+    private static boolean isNotFound(Throwable e) {
+        var cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+
+        return cause instanceof NoSuchKeyException ||
+                (cause instanceof S3Exception && ((S3Exception) cause).statusCode() == 404);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        s3AsyncClient.close();
+    }
+}
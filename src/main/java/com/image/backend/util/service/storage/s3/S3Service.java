@@ -3,9 +3,15 @@ package com.image.backend.util.service.storage.s3;
 import com.image.backend.config.AwsConfig;
 import com.image.backend.util.service.storage.IStorageService;
 import com.image.backend.exception.MimeTypeDetectException;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.SneakyThrows;
 import org.apache.commons.compress.utils.FileNameUtils;
 import org.codehaus.plexus.util.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 import org.springframework.web.multipart.MultipartFile;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
@@ -25,17 +31,49 @@ import java.net.URLConnection;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Objects of bare image names are looked up in a name to key index, which is listed from
+ * every top-level prefix in the background and extended with the keys added after the
+ * last listing. Names missing from the index are probed with HEAD requests per prefix.
+ * <p>
+ * Names which are found in no prefix are remembered for a while, so that searches which
+ * keep returning them do not probe every prefix again.
+ */
 @Component
 public class S3Service implements IStorageService {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
     private final AwsConfig awsConfig;
     private final S3Client s3Client;
     private final String baseUrl;
-    private List<String> prefixes = new ArrayList<>();
-
-    public S3Service(AwsConfig awsConfig) {
+    // Runs the index builds one at a time, the listings of the prefixes run on listExecutor
+    private final ScheduledExecutorService indexScheduler;
+    private final ExecutorService listExecutor;
+    private final S3StreamUploader streamUploader;
+    private volatile List<String> prefixes = new ArrayList<>();
+    private volatile ConcurrentHashMap<String, String> keys = new ConcurrentHashMap<>();
+    private volatile Map<String, String> lastKeys = new HashMap<>();
+    // Expiry time of the names which are known to be missing
+    private final ConcurrentHashMap<String, Long> missing = new ConcurrentHashMap<>();
+    private final AtomicLong missingHits = new AtomicLong();
+    // HEAD requests sent to find objects missing from the index
+    private final AtomicLong probes = new AtomicLong();
+
+    public S3Service(AwsConfig awsConfig, MeterRegistry meterRegistry) {
         this.awsConfig = awsConfig;
         baseUrl = "https://" + awsConfig.getBucketName() + "." + awsConfig.getRegion() + "." + awsConfig.getBaseUrl() + "/";
         s3Client = S3Client.builder()
@@ -44,6 +82,32 @@ public class S3Service implements IStorageService {
                 .region(Region.of(awsConfig.getRegion()))
                 .build();
         setPrefixes();
+        streamUploader = new S3StreamUploader(s3Client, awsConfig.getBucketName(), awsConfig.getUploadPartSize(),
+                awsConfig.getUploadBuffers(), awsConfig.getUploadWindow());
+
+        indexScheduler = Executors.newSingleThreadScheduledExecutor(daemonThreads("s3-key-index-"));
+        listExecutor = Executors.newFixedThreadPool(Math.max(1, awsConfig.getIndexParallelism()),
+                daemonThreads("s3-key-list-"));
+
+        var rebuildInterval = Math.max(1, awsConfig.getIndexRebuildInterval());
+        var updateInterval = Math.max(1, awsConfig.getIndexUpdateInterval());
+        indexScheduler.execute(this::rebuildKeyIndex);
+        indexScheduler.scheduleWithFixedDelay(this::rebuildKeyIndex, rebuildInterval, rebuildInterval, TimeUnit.MILLISECONDS);
+        indexScheduler.scheduleWithFixedDelay(this::updateKeyIndex, updateInterval, updateInterval, TimeUnit.MILLISECONDS);
+
+        FunctionCounter.builder("images.s3.missing_cache.hits", missingHits, AtomicLong::get).register(meterRegistry);
+        FunctionCounter.builder("images.s3.probes", probes, AtomicLong::get).register(meterRegistry);
+        Gauge.builder("images.s3.missing_cache.entries", missing, Map::size).register(meterRegistry);
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        var threads = new AtomicInteger();
+
+        return runnable -> {
+            var thread = new Thread(runnable, name + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
     }
 
     private void setPrefixes() {
@@ -53,7 +117,189 @@ public class S3Service implements IStorageService {
                 collect(java.util.stream.Collectors.toList());
     }
 
-    private URL getUrl(String key) {
+    private static final class Listing {
+        private final Map<String, String> keys = new HashMap<>();
+        private String lastKey;
+    }
+
+    /**
+     * Lists every prefix again in parallel and replaces the key index.
+     */
+    private void rebuildKeyIndex() {
+        try {
+            var start = System.currentTimeMillis();
+            setPrefixes();
+
+            var listings = listAll(prefixes, new HashMap<>());
+            var index = new ConcurrentHashMap<String, String>();
+            var last = new HashMap<String, String>();
+            listings.forEach((prefix, listing) -> {
+                listing.keys.forEach((name, key) -> putKey(index, name, key));
+                last.put(prefix, listing.lastKey);
+            });
+
+            keys = index;
+            lastKeys = last;
+
+            logger.info(String.format("S3 key index is built with %d objects of %d prefixes in %d ms.",
+                    index.size(), prefixes.size(), System.currentTimeMillis() - start));
+        } catch (RuntimeException e) {
+            logger.error("S3 key index cannot be built.", e);
+        }
+    }
+
+    /**
+     * Adds the keys which sort after the last listed key of each prefix to the index. Keys
+     * added in between are found by the HEAD fallback or the next rebuild.
+     */
+    private void updateKeyIndex() {
+        try {
+            var listings = listAll(prefixes, lastKeys);
+            var last = new HashMap<>(lastKeys);
+            listings.forEach((prefix, listing) -> {
+                listing.keys.forEach((name, key) -> putKey(keys, name, key));
+                if (listing.lastKey != null) {
+                    last.put(prefix, listing.lastKey);
+                }
+            });
+
+            lastKeys = last;
+        } catch (RuntimeException e) {
+            logger.warn("S3 key index cannot be updated.", e);
+        }
+    }
+
+    private Map<String, Listing> listAll(List<String> prefixes, Map<String, String> startAfter) {
+        var futures = prefixes.stream()
+                .collect(Collectors.toMap(
+                        prefix -> prefix,
+                        prefix -> CompletableFuture.supplyAsync(() -> list(prefix, startAfter.get(prefix)), listExecutor)
+                ));
+
+        var listings = new HashMap<String, Listing>();
+        futures.forEach((prefix, future) -> listings.put(prefix, future.join()));
+
+        return listings;
+    }
+
+    private Listing list(String prefix, String startAfter) {
+        var listing = new Listing();
+        var request = ListObjectsV2Request.builder()
+                .bucket(awsConfig.getBucketName())
+                .prefix(prefix)
+                .startAfter(startAfter)
+                .build();
+
+        for (var object : s3Client.listObjectsV2Paginator(request).contents()) {
+            var name = object.key().substring(prefix.length());
+            if (!name.isEmpty() && !name.contains("/")) {
+                listing.keys.put(name, object.key());
+            }
+            listing.lastKey = object.key();
+        }
+
+        return listing;
+    }
+
+    /**
+     * Keeps the key of the first prefix when a name exists under many of them, as the
+     * HEAD probes would.
+     */
+    private void putKey(Map<String, String> index, String name, String key) {
+        missing.remove(name);
+        index.merge(name, key, (old, added) -> prefixOrder(old) <= prefixOrder(added) ? old : added);
+    }
+
+    private int prefixOrder(String key) {
+        var order = prefixes.indexOf(key.substring(0, key.lastIndexOf('/') + 1));
+
+        return order >= 0 ? order : Integer.MAX_VALUE;
+    }
+
+    List<String> getPrefixes() {
+        return prefixes;
+    }
+
+    /**
+     * Resolves the name without requests, if it is a key or it is in the key index.
+     *
+     * @return url of the object, null if the prefixes must be probed
+     */
+    URL getIndexedUrl(String name) {
+        if (name.split("/").length > 1) {
+            return getUrl(name);
+        }
+
+        var key = keys.get(name);
+
+        return key != null ? getUrl(key) : null;
+    }
+
+    void addKey(String name, String key) {
+        putKey(keys, name, key);
+    }
+
+    /**
+     * Makes an uploaded object visible right away, instead of after the missing TTL or the
+     * next index update. Only objects directly under a top-level prefix are indexed.
+     */
+    private void keyAdded(String key) {
+        var separator = key.lastIndexOf('/');
+        var name = key.substring(separator + 1);
+
+        if (prefixes.contains(key.substring(0, separator + 1))) {
+            addKey(name, key);
+        } else {
+            missing.remove(name);
+        }
+    }
+
+    /**
+     * Drops a deleted object from the index, so that the name is probed again.
+     */
+    private void keyRemoved(String key) {
+        keys.remove(key.substring(key.lastIndexOf('/') + 1), key);
+    }
+
+    /**
+     * Tells whether the name was found in no prefix within the missing TTL.
+     */
+    boolean isKnownMissing(String name) {
+        var expiresAt = missing.get(name);
+        if (expiresAt != null) {
+            if (expiresAt > System.currentTimeMillis()) {
+                missingHits.incrementAndGet();
+                return true;
+            }
+            missing.remove(name, expiresAt);
+        }
+
+        return false;
+    }
+
+    void countProbes(int count) {
+        probes.addAndGet(count);
+    }
+
+    void markMissing(String name) {
+        if (missing.size() >= awsConfig.getMissingMaxEntries()) {
+            removeExpiredMissing();
+            if (missing.size() >= awsConfig.getMissingMaxEntries()) {
+                return;
+            }
+        }
+
+        missing.put(name, System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(awsConfig.getMissingTtl()));
+    }
+
+    @Scheduled(fixedDelay = 60 * 1000)
+    public void removeExpiredMissing() {
+        var now = System.currentTimeMillis();
+
+        missing.values().removeIf(expiresAt -> expiresAt <= now);
+    }
+
+    URL getUrl(String key) {
         try {
             return new URL(baseUrl + key);
         } catch (MalformedURLException e) {
@@ -61,27 +307,35 @@ public class S3Service implements IStorageService {
         }
     }
 
+    /**
+     * @return url of the object, null if it is not found in any prefix
+     */
     @Override
     public URL getS3Url(String name) {
-        if (name.split("/").length > 1) {
-            return getUrl(name);
+        var indexed = getIndexedUrl(name);
+        if (indexed != null) {
+            return indexed;
         }
 
-        String val = "";
+        if (isKnownMissing(name)) {
+            return null;
+        }
 
         for (String prefix : prefixes) {
             try {
+                countProbes(1);
                 s3Client.headObject(HeadObjectRequest.builder()
                         .bucket(awsConfig.getBucketName()).key(prefix + name).build());
-                val = prefix + name;
-                break;
+                putKey(keys, name, prefix + name);
+                return getUrl(prefix + name);
             } catch (NoSuchKeyException ignored) {
 
             }
 
         }
-        return getUrl(val);
 
+        markMissing(name);
+        return null;
     }
 
     @Override
@@ -102,7 +356,7 @@ public class S3Service implements IStorageService {
         var bufferedInputStream = new BufferedInputStream(inputStream);
         var contentType = getContentType(bufferedInputStream);
 
-        return put(RequestBody.fromInputStream(bufferedInputStream, bufferedInputStream.available()), path, contentType);
+        return putStream(bufferedInputStream, path, contentType);
     }
 
     @Override
@@ -112,11 +366,7 @@ public class S3Service implements IStorageService {
         var contentType = getContentType(bufferedInputStream);
         var extension = contentType.split("/")[1];
 
-        return put(
-                RequestBody.fromInputStream(bufferedInputStream, bufferedInputStream.available()),
-                generatePathWithExtension(extension),
-                contentType
-        );
+        return putStream(bufferedInputStream, generatePathWithExtension(extension), contentType);
     }
 
     @Override
@@ -129,13 +379,21 @@ public class S3Service implements IStorageService {
         } else {
             extension = FileNameUtils.getExtension(file.getOriginalFilename());
         }
-        var bufferedInputStream = new BufferedInputStream(file.getInputStream());
 
-        return put(
-                RequestBody.fromInputStream(bufferedInputStream, bufferedInputStream.available()),
-                generatePathWithExtension(extension),
-                contentType
-        );
+        return putStream(file.getInputStream(), generatePathWithExtension(extension), contentType);
+    }
+
+    @SneakyThrows
+    private URL putStream(InputStream inputStream, Path path, String contentType) {
+        if (!path.equals(path.normalize())) {
+            throw new IllegalArgumentException("The path must be normalized.");
+        }
+
+        var key = getRemotePath(path).toString();
+        streamUploader.upload(inputStream, key, contentType);
+        keyAdded(key);
+
+        return getRemoteUrl(path);
     }
 
     private URL put(RequestBody requestBody, Path path, String contentType) {
@@ -151,6 +409,7 @@ public class S3Service implements IStorageService {
                 .contentType(contentType)
                 .build();
         s3Client.putObject(req, requestBody);
+        keyAdded(remotePath.toString());
 
         return getRemoteUrl(path);
     }
@@ -181,6 +440,7 @@ public class S3Service implements IStorageService {
                 .build();
 
         s3Client.deleteObject(req);
+        keyRemoved(remotePath.toString());
     }
 
     @Override
@@ -197,6 +457,7 @@ public class S3Service implements IStorageService {
                 .build();
 
         s3Client.deleteObject(req);
+        keyRemoved(urlPath);
     }
 
     private String getContentType(BufferedInputStream bufferedInputStream) {
@@ -248,6 +509,9 @@ public class S3Service implements IStorageService {
 
     @PreDestroy
     public void destroy() {
+        indexScheduler.shutdownNow();
+        listExecutor.shutdownNow();
+        streamUploader.shutdown();
         s3Client.close();
     }
 
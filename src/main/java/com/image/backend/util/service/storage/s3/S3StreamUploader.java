@@ -0,0 +1,218 @@
+package com.image.backend.util.service.storage.s3;
+
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.ObjectCannedACL;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Uploads streams of unknown length. The stream is read in fixed-size parts into buffers
+ * of a shared pool, and each upload keeps a bounded window of parts in flight, so memory
+ * stays constant whatever the length is. Streams shorter than a part are put in a single
+ * request, longer ones as a multipart upload which is aborted if any part fails.
+ */
+class S3StreamUploader {
+    // S3 rejects parts smaller than this, except the last one
+    private static final int MIN_PART_SIZE = 5 * 1024 * 1024;
+
+    private final S3Client s3Client;
+    private final String bucketName;
+    private final int partSize;
+    private final int maxBuffers;
+    private final int window;
+    private final ArrayBlockingQueue<byte[]> buffers;
+    private final AtomicInteger allocated = new AtomicInteger();
+    private final ExecutorService executor;
+
+    S3StreamUploader(S3Client s3Client, String bucketName, int partSize, int maxBuffers, int window) {
+        this.s3Client = s3Client;
+        this.bucketName = bucketName;
+        this.partSize = Math.max(MIN_PART_SIZE, partSize);
+        this.maxBuffers = Math.max(1, maxBuffers);
+        this.window = Math.max(1, Math.min(window, this.maxBuffers));
+        this.buffers = new ArrayBlockingQueue<>(this.maxBuffers);
+
+        var threads = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(this.maxBuffers, runnable -> {
+            var thread = new Thread(runnable, "s3-upload-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    void upload(InputStream input, String key, String contentType) throws IOException, InterruptedException {
+        var buffer = acquire();
+        int length;
+        try {
+            length = input.readNBytes(buffer, 0, buffer.length);
+        } catch (IOException e) {
+            release(buffer);
+            throw e;
+        }
+
+        if (length < buffer.length) {
+            try {
+                s3Client.putObject(PutObjectRequest.builder()
+                        .bucket(bucketName)
+                        .acl(ObjectCannedACL.PUBLIC_READ)
+                        .key(key)
+                        .contentType(contentType)
+                        .build(), body(buffer, length));
+            } finally {
+                release(buffer);
+            }
+            return;
+        }
+
+        String uploadId;
+        try {
+            uploadId = s3Client.createMultipartUpload(CreateMultipartUploadRequest.builder()
+                    .bucket(bucketName)
+                    .acl(ObjectCannedACL.PUBLIC_READ)
+                    .key(key)
+                    .contentType(contentType)
+                    .build()).uploadId();
+        } catch (RuntimeException e) {
+            release(buffer);
+            throw e;
+        }
+
+        var parts = new ArrayList<CompletableFuture<CompletedPart>>();
+        var inFlight = new Semaphore(window);
+
+        try {
+            var partNumber = 1;
+            while (true) {
+                inFlight.acquire();
+                parts.add(uploadPart(key, uploadId, partNumber++, buffer, length, inFlight));
+                buffer = null;
+                throwIfFailed(parts);
+
+                if (length < partSize) {
+                    break;
+                }
+
+                buffer = acquire();
+                length = input.readNBytes(buffer, 0, buffer.length);
+                if (length == 0) {
+                    release(buffer);
+                    buffer = null;
+                    break;
+                }
+            }
+
+            var completed = join(parts);
+            s3Client.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                    .bucket(bucketName)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .multipartUpload(CompletedMultipartUpload.builder().parts(completed).build())
+                    .build());
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            if (buffer != null) {
+                release(buffer);
+            }
+            abort(key, uploadId, parts);
+            throw e;
+        }
+    }
+
+    private CompletableFuture<CompletedPart> uploadPart(String key, String uploadId, int partNumber,
+                                                        byte[] buffer, int length, Semaphore inFlight) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                var response = s3Client.uploadPart(UploadPartRequest.builder()
+                        .bucket(bucketName)
+                        .key(key)
+                        .uploadId(uploadId)
+                        .partNumber(partNumber)
+                        .contentLength((long) length)
+                        .build(), body(buffer, length));
+
+                return CompletedPart.builder().partNumber(partNumber).eTag(response.eTag()).build();
+            } finally {
+                release(buffer);
+                inFlight.release();
+            }
+        }, executor);
+    }
+
+    /**
+     * Waits for the parts in flight before aborting, since parts which are still being
+     * uploaded could outlive the abort.
+     */
+    private void abort(String key, String uploadId, List<CompletableFuture<CompletedPart>> parts) {
+        CompletableFuture.allOf(parts.toArray(CompletableFuture<?>[]::new))
+                .handle((ignored, e) -> null)
+                .join();
+
+        s3Client.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                .bucket(bucketName)
+                .key(key)
+                .uploadId(uploadId)
+                .build());
+    }
+
+    private static void throwIfFailed(List<CompletableFuture<CompletedPart>> parts) {
+        for (var part : parts) {
+            if (part.isCompletedExceptionally()) {
+                part.join();
+            }
+        }
+    }
+
+    private static List<CompletedPart> join(List<CompletableFuture<CompletedPart>> parts) {
+        try {
+            return parts.stream().map(CompletableFuture::join).collect(Collectors.toList());
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    private static RequestBody body(byte[] buffer, int length) {
+        // The stream supports reset, so the SDK can retry the request without a copy
+        return RequestBody.fromInputStream(new ByteArrayInputStream(buffer, 0, length), length);
+    }
+
+    private byte[] acquire() throws InterruptedException {
+        var buffer = buffers.poll();
+        if (buffer != null) {
+            return buffer;
+        }
+
+        if (allocated.incrementAndGet() <= maxBuffers) {
+            return new byte[partSize];
+        }
+        allocated.decrementAndGet();
+
+        return buffers.take();
+    }
+
+    private void release(byte[] buffer) {
+        buffers.offer(buffer);
+    }
+
+    void shutdown() {
+        executor.shutdownNow();
+    }
+}
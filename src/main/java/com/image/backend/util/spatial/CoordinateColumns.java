@@ -0,0 +1,127 @@
+package com.image.backend.util.spatial;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Read-only columnar copy of positions. Coordinates are kept in primitive arrays, so a
+ * brute-force scan reads memory sequentially and does not touch the value objects until
+ * a row matches. Scans are split across a fork-join pool.
+ *
+ * @param <T> type of the stored values
+ */
+public class CoordinateColumns<T extends Positioned> {
+    private static final int SCAN_CHUNK_SIZE = 16 * 1024;
+
+    private final double[] xs;
+    private final double[] ys;
+    private final double[] zs;
+    private final List<T> values;
+
+    public CoordinateColumns(@NotNull List<T> values) {
+        this.values = new ArrayList<>(values);
+        this.xs = new double[values.size()];
+        this.ys = new double[values.size()];
+        this.zs = new double[values.size()];
+
+        for (int row = 0; row < values.size(); row++) {
+            var value = values.get(row);
+            xs[row] = value.getX();
+            ys[row] = value.getY();
+            zs[row] = value.getZ();
+        }
+    }
+
+    public int size() {
+        return values.size();
+    }
+
+    /**
+     * Finds all values whose euclidean distance to the given point is less than or equal to radius.
+     *
+     * @return values in the order of their rows
+     */
+    public List<T> withinRadius(double x, double y, double z, double radius, @NotNull ForkJoinPool pool) {
+        var hits = pool.invoke(new ScanTask(x, y, z, radius * radius, 0, values.size()));
+
+        var result = new ArrayList<T>(hits.count);
+        for (int i = 0; i < hits.count; i++) {
+            result.add(values.get(hits.rows[i]));
+        }
+
+        return result;
+    }
+
+    private static final class Hits {
+        private int[] rows;
+        private int count = 0;
+
+        private Hits(int capacity) {
+            rows = new int[Math.max(16, capacity)];
+        }
+
+        private void add(int row) {
+            if (count == rows.length) {
+                rows = Arrays.copyOf(rows, rows.length * 2);
+            }
+            rows[count++] = row;
+        }
+
+        private Hits append(Hits other) {
+            if (count + other.count > rows.length) {
+                rows = Arrays.copyOf(rows, count + other.count);
+            }
+            System.arraycopy(other.rows, 0, rows, count, other.count);
+            count += other.count;
+
+            return this;
+        }
+    }
+
+    private final class ScanTask extends RecursiveTask<Hits> {
+        private final double x;
+        private final double y;
+        private final double z;
+        private final double radiusSquared;
+        private final int from;
+        private final int to;
+
+        private ScanTask(double x, double y, double z, double radiusSquared, int from, int to) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.radiusSquared = radiusSquared;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Hits compute() {
+            if (to - from > SCAN_CHUNK_SIZE) {
+                var middle = (from + to) >>> 1;
+                var left = new ScanTask(x, y, z, radiusSquared, from, middle);
+                left.fork();
+                var right = new ScanTask(x, y, z, radiusSquared, middle, to).compute();
+
+                return left.join().append(right);
+            }
+
+            var hits = new Hits((to - from) / 8);
+            for (int row = from; row < to; row++) {
+                var dx = xs[row] - x;
+                var dy = ys[row] - y;
+                var dz = zs[row] - z;
+                if (dx * dx + dy * dy + dz * dz <= radiusSquared) {
+                    hits.add(row);
+                }
+            }
+
+            return hits;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.image.backend.util.spatial;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Position of the last returned image in a result ordered by distance and id,
+ * the next page starts right after it. Images at the same distance are ordered by id,
+ * so ties are split between pages without repeating or skipping any of them.
+ */
+@Getter
+@AllArgsConstructor
+public class DistanceCursor {
+    private static final Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder decoder = Base64.getUrlDecoder();
+
+    private final double distanceSquared;
+
+    private final long id;
+
+    public static DistanceCursor after(@NotNull IndexedImage image, double x, double y, double z) {
+        return new DistanceCursor(image.distanceSquared(x, y, z), image.getId());
+    }
+
+    /**
+     * @return decoded cursor or null if it is malformed
+     */
+    public static DistanceCursor decode(@NotNull String value) {
+        try {
+            var parts = new String(decoder.decode(value), StandardCharsets.UTF_8).split(",");
+            if (parts.length != 2) {
+                return null;
+            }
+
+            var distanceSquared = Double.parseDouble(parts[0]);
+            if (!Double.isFinite(distanceSquared) || distanceSquared < 0) {
+                return null;
+            }
+
+            return new DistanceCursor(distanceSquared, Long.parseLong(parts[1]));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    public String encode() {
+        return encoder.encodeToString((distanceSquared + "," + id).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Whether the image comes after the cursor in the order by distance to the point and
+     * id, that is whether it belongs to the following pages. The database applies the same
+     * order, see ImageSpecifications#inSphereAfter.
+     */
+    public boolean isAfterCursor(@NotNull IndexedImage image, double x, double y, double z) {
+        var distance = image.distanceSquared(x, y, z);
+
+        return distance > distanceSquared || (distance == distanceSquared && image.getId() > id);
+    }
+}
@@ -0,0 +1,97 @@
+package com.image.backend.util.spatial;
+
+import lombok.Getter;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * View frustum of a perspective camera. The camera looks towards -z and its up is +y
+ * before it is rotated by the orientation quaternion.
+ */
+public class Frustum {
+    private final double[] position;
+    private final double[] forward;
+    private final double[] up;
+    private final double[] right;
+    private final double near;
+    private final double far;
+    private final double tanVertical;
+    private final double tanHorizontal;
+
+    @Getter
+    private final double[] center;
+
+    @Getter
+    private final double boundingRadius;
+
+    public Frustum(double x, double y, double z,
+                   double qx, double qy, double qz, double qw,
+                   double fovDegrees, double aspect, double near, double far) {
+        var length = Math.sqrt(qx * qx + qy * qy + qz * qz + qw * qw);
+        if (length == 0) {
+            throw new IllegalArgumentException("Orientation must not be a zero quaternion.");
+        }
+        qx /= length;
+        qy /= length;
+        qz /= length;
+        qw /= length;
+
+        this.position = new double[]{x, y, z};
+        this.forward = rotate(qx, qy, qz, qw, 0, 0, -1);
+        this.up = rotate(qx, qy, qz, qw, 0, 1, 0);
+        this.right = rotate(qx, qy, qz, qw, 1, 0, 0);
+        this.near = near;
+        this.far = far;
+        this.tanVertical = Math.tan(Math.toRadians(fovDegrees) / 2);
+        this.tanHorizontal = tanVertical * aspect;
+
+        // Sphere around the middle of the frustum which passes through the corners of the far plane
+        var middle = (near + far) / 2;
+        this.center = new double[]{
+                x + forward[0] * middle,
+                y + forward[1] * middle,
+                z + forward[2] * middle
+        };
+        var halfDepth = (far - near) / 2;
+        var halfHeight = far * tanVertical;
+        var halfWidth = far * tanHorizontal;
+        this.boundingRadius = Math.sqrt(halfDepth * halfDepth + halfHeight * halfHeight + halfWidth * halfWidth);
+    }
+
+    public boolean contains(@NotNull Positioned point) {
+        var vx = point.getX() - position[0];
+        var vy = point.getY() - position[1];
+        var vz = point.getZ() - position[2];
+
+        var depth = vx * forward[0] + vy * forward[1] + vz * forward[2];
+        if (depth < near || depth > far) {
+            return false;
+        }
+
+        var vertical = vx * up[0] + vy * up[1] + vz * up[2];
+        var horizontal = vx * right[0] + vy * right[1] + vz * right[2];
+
+        return Math.abs(vertical) <= depth * tanVertical && Math.abs(horizontal) <= depth * tanHorizontal;
+    }
+
+    public double distanceSquared(@NotNull Positioned point) {
+        return point.distanceSquared(position[0], position[1], position[2]);
+    }
+
+    /**
+     * Rotates vector v by the unit quaternion q.
+     */
+    private static double[] rotate(double qx, double qy, double qz, double qw,
+                                   double vx, double vy, double vz) {
+        // t = 2 * cross(q.xyz, v)
+        var tx = 2 * (qy * vz - qz * vy);
+        var ty = 2 * (qz * vx - qx * vz);
+        var tz = 2 * (qx * vy - qy * vx);
+
+        // v + w * t + cross(q.xyz, t)
+        return new double[]{
+                vx + qw * tx + (qy * tz - qz * ty),
+                vy + qw * ty + (qz * tx - qx * tz),
+                vz + qw * tz + (qx * ty - qy * tx)
+        };
+    }
+}
@@ -0,0 +1,516 @@
+package com.image.backend.util.spatial;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntConsumer;
+import java.util.function.Predicate;
+
+/**
+ * Immutable k-d tree of images stored in a file and memory-mapped, so that it is not part
+ * of the heap and is available right after the file is opened.
+ * <p>
+ * The file starts with a header, followed by fixed-size records of {x, y, z, id, string offset}
+ * laid out as an implicit tree: the record in the middle of a range splits it on the axis of
+ * its depth. Names and urls of the records follow in a separate section, they are only decoded
+ * for the records which match a query.
+ */
+public final class ImageSnapshot implements Iterable<IndexedImage> {
+    private static final int MAGIC = 0x494d4753;
+    private static final int FORMAT = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int RECORD_SIZE = 40;
+    private static final int DIMENSIONS = 3;
+    private static final int SCAN_CHUNK_SIZE = 16 * 1024;
+
+    private final long stamp;
+    private final int size;
+    private final MappedByteBuffer records;
+    private final MappedByteBuffer strings;
+    // Bounding box of the records as {minX, minY, minZ, maxX, maxY, maxZ}, null if empty
+    private final double[] bounds;
+
+    private ImageSnapshot(long stamp, int size, MappedByteBuffer records, MappedByteBuffer strings) {
+        this.stamp = stamp;
+        this.size = size;
+        this.records = records;
+        this.strings = strings;
+        this.bounds = size > 0 ? boundsOf(records, size) : null;
+    }
+
+    private static double[] boundsOf(ByteBuffer records, int size) {
+        var bounds = new double[]{
+                Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+                Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY
+        };
+        for (int row = 0; row < size; row++) {
+            for (int axis = 0; axis < DIMENSIONS; axis++) {
+                var value = coordinate(records, row, axis);
+                bounds[axis] = Math.min(bounds[axis], value);
+                bounds[axis + DIMENSIONS] = Math.max(bounds[axis + DIMENSIONS], value);
+            }
+        }
+
+        return bounds;
+    }
+
+    /**
+     * Version of the snapshot, rows changed after it are not part of the file.
+     */
+    public long getStamp() {
+        return stamp;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return {minX, minY, minZ, maxX, maxY, maxZ}, null if the snapshot is empty
+     */
+    public double[] bounds() {
+        return bounds != null ? bounds.clone() : null;
+    }
+
+    /**
+     * Maps an existing snapshot file.
+     *
+     * @throws IOException if the file cannot be read or is not a snapshot of this format
+     */
+    public static ImageSnapshot open(@NotNull Path path) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            var header = ByteBuffer.allocate(HEADER_SIZE);
+            if (channel.size() >= HEADER_SIZE) {
+                channel.read(header, 0);
+            }
+            header.flip();
+
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC || header.getInt() != FORMAT) {
+                throw new IOException(String.format("%s is not an image snapshot", path));
+            }
+
+            var stamp = header.getLong();
+            var size = header.getLong();
+            var stringsOffset = header.getLong();
+            var stringsLength = header.getLong();
+
+            if (HEADER_SIZE + size * RECORD_SIZE != stringsOffset ||
+                    stringsOffset + stringsLength != channel.size()) {
+                throw new IOException(String.format("%s is truncated", path));
+            }
+
+            return new ImageSnapshot(
+                    stamp,
+                    (int) size,
+                    channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, size * RECORD_SIZE),
+                    channel.map(FileChannel.MapMode.READ_ONLY, stringsOffset, stringsLength)
+            );
+        }
+    }
+
+    /**
+     * Writes the images into a new snapshot file. The file is built next to the target
+     * and moved over it when complete, so a crash never leaves a partial snapshot behind.
+     *
+     * @param stamp  version of the snapshot
+     * @param images images of the snapshot, they are iterated once
+     */
+    public static void write(@NotNull Path path, long stamp, @NotNull Iterable<IndexedImage> images)
+            throws IOException {
+        var recordsFile = path.resolveSibling(path.getFileName() + ".tmp");
+        var stringsFile = path.resolveSibling(path.getFileName() + ".strings.tmp");
+
+        try {
+            long size = 0;
+            long stringsLength = 0;
+
+            try (var recordsOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(recordsFile)));
+                 var stringsOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(stringsFile)))) {
+                recordsOut.write(new byte[HEADER_SIZE]);
+
+                for (var image : images) {
+                    recordsOut.writeDouble(image.getX());
+                    recordsOut.writeDouble(image.getY());
+                    recordsOut.writeDouble(image.getZ());
+                    recordsOut.writeLong(image.getId());
+                    recordsOut.writeLong(stringsLength);
+
+                    stringsLength += writeString(stringsOut, image.getName());
+                    stringsLength += writeString(stringsOut, image.getUrl());
+                    size++;
+                }
+            }
+
+            var recordsLength = size * RECORD_SIZE;
+            if (recordsLength > Integer.MAX_VALUE || stringsLength > Integer.MAX_VALUE) {
+                throw new IOException("Image snapshot does not fit in a single mapping");
+            }
+
+            try (var channel = FileChannel.open(recordsFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                 var stringsChannel = FileChannel.open(stringsFile, StandardOpenOption.READ)) {
+                var stringsOffset = HEADER_SIZE + recordsLength;
+                for (long copied = 0; copied < stringsLength; ) {
+                    copied += stringsChannel.transferTo(copied, stringsLength - copied, channel.position(stringsOffset + copied));
+                }
+
+                var header = ByteBuffer.allocate(HEADER_SIZE)
+                        .putInt(MAGIC)
+                        .putInt(FORMAT)
+                        .putLong(stamp)
+                        .putLong(size)
+                        .putLong(stringsOffset)
+                        .putLong(stringsLength);
+                header.rewind();
+                channel.write(header, 0);
+
+                var buffer = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE, recordsLength);
+                build(buffer, 0, (int) size, 0);
+                buffer.force();
+            }
+
+            Files.move(recordsFile, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(stringsFile);
+            Files.deleteIfExists(recordsFile);
+        }
+    }
+
+    private static int writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return Integer.BYTES;
+        }
+
+        var bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+
+        return Integer.BYTES + bytes.length;
+    }
+
+    private static void build(ByteBuffer buffer, int from, int to, int depth) {
+        if (to - from <= 1) {
+            return;
+        }
+
+        var median = (from + to) >>> 1;
+        select(buffer, from, to, median, depth % DIMENSIONS);
+        build(buffer, from, median, depth + 1);
+        build(buffer, median + 1, to, depth + 1);
+    }
+
+    /**
+     * Moves the k-th smallest record of the range on the axis to its place, with smaller
+     * or equal records before it and greater or equal ones after it.
+     */
+    private static void select(ByteBuffer buffer, int from, int to, int k, int axis) {
+        var low = from;
+        var high = to - 1;
+
+        while (low < high) {
+            var pivot = coordinate(buffer, (low + high) >>> 1, axis);
+            var i = low;
+            var j = high;
+
+            while (i <= j) {
+                while (coordinate(buffer, i, axis) < pivot) {
+                    i++;
+                }
+                while (coordinate(buffer, j, axis) > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(buffer, i++, j--);
+                }
+            }
+
+            if (k <= j) {
+                high = j;
+            } else if (k >= i) {
+                low = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    private static void swap(ByteBuffer buffer, int i, int j) {
+        for (int offset = 0; offset < RECORD_SIZE; offset += Long.BYTES) {
+            var a = buffer.getLong(i * RECORD_SIZE + offset);
+            buffer.putLong(i * RECORD_SIZE + offset, buffer.getLong(j * RECORD_SIZE + offset));
+            buffer.putLong(j * RECORD_SIZE + offset, a);
+        }
+    }
+
+    private static double coordinate(ByteBuffer buffer, int row, int axis) {
+        return buffer.getDouble(row * RECORD_SIZE + axis * Double.BYTES);
+    }
+
+    private double distanceSquared(int row, double[] point) {
+        var dx = coordinate(records, row, 0) - point[0];
+        var dy = coordinate(records, row, 1) - point[1];
+        var dz = coordinate(records, row, 2) - point[2];
+
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    private String name(int row) {
+        return string(records.getLong(row * RECORD_SIZE + 4 * Long.BYTES));
+    }
+
+    private String string(long offset) {
+        var length = strings.getInt((int) offset);
+        if (length < 0) {
+            return null;
+        }
+
+        var bytes = new byte[length];
+        strings.duplicate().position((int) offset + Integer.BYTES).get(bytes);
+
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private IndexedImage image(int row) {
+        var offset = records.getLong(row * RECORD_SIZE + 4 * Long.BYTES);
+        var name = string(offset);
+        var nameLength = strings.getInt((int) offset);
+
+        return new IndexedImage(
+                records.getLong(row * RECORD_SIZE + 3 * Long.BYTES),
+                name,
+                coordinate(records, row, 0),
+                coordinate(records, row, 1),
+                coordinate(records, row, 2),
+                string(offset + Integer.BYTES + nameLength)
+        );
+    }
+
+    /**
+     * Reads the images of the snapshot one by one.
+     */
+    @NotNull
+    @Override
+    public Iterator<IndexedImage> iterator() {
+        return new Iterator<>() {
+            private int row = 0;
+
+            @Override
+            public boolean hasNext() {
+                return row < size;
+            }
+
+            @Override
+            public IndexedImage next() {
+                if (row >= size) {
+                    throw new NoSuchElementException();
+                }
+
+                return image(row++);
+            }
+        };
+    }
+
+    /**
+     * Finds all images whose euclidean distance to the given point is less than or equal to radius.
+     *
+     * @param excluded names of the images which are skipped
+     * @return images in no particular order
+     */
+    public List<IndexedImage> withinRadius(double x, double y, double z, double radius,
+                                           @NotNull Predicate<String> excluded) {
+        var images = new ArrayList<IndexedImage>();
+        withinRadius(0, size, 0, new double[]{x, y, z}, radius, row -> {
+            var image = image(row);
+            if (!excluded.test(image.getName())) {
+                images.add(image);
+            }
+        });
+
+        return images;
+    }
+
+    /**
+     * Finds the same images as {@link #withinRadius(double, double, double, double, Predicate)}
+     * by reading every record, split across the pool. Faster than the tree when the sphere
+     * covers a large part of the snapshot.
+     *
+     * @param excluded names of the images which are skipped
+     * @return images in the order of their records
+     */
+    public List<IndexedImage> scan(double x, double y, double z, double radius,
+                                   @NotNull Predicate<String> excluded, @NotNull ForkJoinPool pool) {
+        return pool.invoke(new ScanTask(new double[]{x, y, z}, radius * radius, excluded, 0, size));
+    }
+
+    private final class ScanTask extends RecursiveTask<List<IndexedImage>> {
+        private final double[] point;
+        private final double radiusSquared;
+        private final Predicate<String> excluded;
+        private final int from;
+        private final int to;
+
+        private ScanTask(double[] point, double radiusSquared, Predicate<String> excluded, int from, int to) {
+            this.point = point;
+            this.radiusSquared = radiusSquared;
+            this.excluded = excluded;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<IndexedImage> compute() {
+            if (to - from > SCAN_CHUNK_SIZE) {
+                var middle = (from + to) >>> 1;
+                var left = new ScanTask(point, radiusSquared, excluded, from, middle);
+                left.fork();
+                var right = new ScanTask(point, radiusSquared, excluded, middle, to).compute();
+
+                var images = left.join();
+                images.addAll(right);
+                return images;
+            }
+
+            var images = new ArrayList<IndexedImage>();
+            for (int row = from; row < to; row++) {
+                if (distanceSquared(row, point) <= radiusSquared && !excluded.test(name(row))) {
+                    images.add(image(row));
+                }
+            }
+
+            return images;
+        }
+    }
+
+    /**
+     * Picks one image of each Morton cell of given level in the sphere, cells which are
+     * already taken are skipped.
+     *
+     * @param cells taken cells, picked ones are added to it
+     * @param excluded names of the images which are skipped
+     * @return picked images in no particular order
+     */
+    public List<IndexedImage> sample(double x, double y, double z, double radius, int level,
+                                     @NotNull Set<Long> cells, @NotNull Predicate<String> excluded) {
+        var images = new ArrayList<IndexedImage>();
+        withinRadius(0, size, 0, new double[]{x, y, z}, radius, row -> {
+            var cell = MortonCode.cell(coordinate(records, row, 0), coordinate(records, row, 1),
+                    coordinate(records, row, 2), level);
+            if (cells.contains(cell) || excluded.test(name(row))) {
+                return;
+            }
+
+            cells.add(cell);
+            images.add(image(row));
+        });
+
+        return images;
+    }
+
+    private void withinRadius(int from, int to, int depth, double[] point, double radius, IntConsumer consumer) {
+        if (from >= to) {
+            return;
+        }
+
+        var median = (from + to) >>> 1;
+        var axis = depth % DIMENSIONS;
+        var split = coordinate(records, median, axis);
+
+        if (distanceSquared(median, point) <= radius * radius) {
+            consumer.accept(median);
+        }
+        if (point[axis] - radius <= split) {
+            withinRadius(from, median, depth + 1, point, radius, consumer);
+        }
+        if (point[axis] + radius >= split) {
+            withinRadius(median + 1, to, depth + 1, point, radius, consumer);
+        }
+    }
+
+    /**
+     * Finds the k images closest to the point.
+     *
+     * @param excluded names of the images which are skipped
+     * @return images ordered by their distance to the point
+     */
+    public List<IndexedImage> nearest(double x, double y, double z, int k, @NotNull Predicate<String> excluded) {
+        if (k <= 0) {
+            return new ArrayList<>();
+        }
+
+        var heap = new PriorityQueue<Candidate>(k + 1,
+                Comparator.comparingDouble((Candidate candidate) -> candidate.distanceSquared).reversed());
+        nearest(0, size, 0, new double[]{x, y, z}, k, heap, excluded);
+
+        var candidates = new ArrayList<>(heap);
+        candidates.sort(Comparator.comparingDouble(candidate -> candidate.distanceSquared));
+
+        var images = new ArrayList<IndexedImage>(candidates.size());
+        for (var candidate : candidates) {
+            images.add(image(candidate.row));
+        }
+
+        return images;
+    }
+
+    private void nearest(int from, int to, int depth, double[] point, int k,
+                         PriorityQueue<Candidate> heap, Predicate<String> excluded) {
+        if (from >= to) {
+            return;
+        }
+
+        var median = (from + to) >>> 1;
+        var axis = depth % DIMENSIONS;
+        var diff = point[axis] - coordinate(records, median, axis);
+
+        var distanceSquared = distanceSquared(median, point);
+        if ((heap.size() < k || distanceSquared < heap.peek().distanceSquared) && !excluded.test(name(median))) {
+            heap.add(new Candidate(median, distanceSquared));
+            if (heap.size() > k) {
+                heap.poll();
+            }
+        }
+
+        if (diff < 0) {
+            nearest(from, median, depth + 1, point, k, heap, excluded);
+        } else {
+            nearest(median + 1, to, depth + 1, point, k, heap, excluded);
+        }
+
+        if (heap.size() < k || diff * diff <= heap.peek().distanceSquared) {
+            if (diff < 0) {
+                nearest(median + 1, to, depth + 1, point, k, heap, excluded);
+            } else {
+                nearest(from, median, depth + 1, point, k, heap, excluded);
+            }
+        }
+    }
+
+    private static final class Candidate {
+        private final int row;
+        private final double distanceSquared;
+
+        private Candidate(int row, double distanceSquared) {
+            this.row = row;
+            this.distanceSquared = distanceSquared;
+        }
+    }
+}
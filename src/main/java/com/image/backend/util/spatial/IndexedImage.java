@@ -0,0 +1,38 @@
+package com.image.backend.util.spatial;
+
+import com.image.backend.model.Image;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Light-weight, detached copy of an {@link Image} row kept in the spatial structures.
+ */
+@Getter
+@AllArgsConstructor
+public class IndexedImage implements Positioned {
+    private final long id;
+
+    private final String name;
+
+    private final double x;
+
+    private final double y;
+
+    private final double z;
+
+    @Setter
+    private volatile String url;
+
+    public static IndexedImage of(@NotNull Image image) {
+        return new IndexedImage(
+                image.getId(),
+                image.getName(),
+                image.getX() != null ? image.getX() : 0,
+                image.getY() != null ? image.getY() : 0,
+                image.getZ() != null ? image.getZ() : 0,
+                image.getUrl()
+        );
+    }
+}
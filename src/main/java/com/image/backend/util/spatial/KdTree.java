@@ -0,0 +1,541 @@
+package com.image.backend.util.spatial;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * A 3 dimensional k-d tree. Removals are done lazily, and the tree is rebuilt
+ * when too many nodes are removed after the last build. Insertions keep the depth
+ * logarithmic by rebuilding an unbalanced subtree on their path in place, as a
+ * scapegoat tree does, so sorted inserts do not degrade into a chain.
+ * <p>
+ * Traversals use an explicit stack. This class is not thread safe, callers must
+ * synchronize the access.
+ *
+ * @param <T> type of the stored values
+ */
+public class KdTree<T extends Positioned> {
+    private static final int DIMENSIONS = 3;
+    private static final int MIN_REBUILD_THRESHOLD = 1024;
+    // A subtree is rebuilt when one of its children holds more than this fraction of it
+    private static final double BALANCE = 0.7;
+
+    private Node<T> root = null;
+    private int size = 0;
+    private int removed = 0;
+    private int builtSize = 0;
+
+    public static final class Node<T extends Positioned> {
+        private final T value;
+        private int axis;
+        private Node<T> left;
+        private Node<T> right;
+        private boolean deleted = false;
+        // Number of nodes in the subtree, removed ones included
+        private int count = 1;
+        // Bounding box of the subtree as {minX, minY, minZ, maxX, maxY, maxZ}
+        private final double[] bounds;
+
+        private Node(T value, int axis) {
+            this.value = value;
+            this.axis = axis;
+            this.bounds = boundsOf(value);
+        }
+
+        private void include(double[] other) {
+            for (int i = 0; i < DIMENSIONS; i++) {
+                bounds[i] = Math.min(bounds[i], other[i]);
+                bounds[i + DIMENSIONS] = Math.max(bounds[i + DIMENSIONS], other[i + DIMENSIONS]);
+            }
+        }
+
+        private double distanceSquared(double[] point) {
+            var distance = 0d;
+            for (int i = 0; i < DIMENSIONS; i++) {
+                var diff = Math.max(0, Math.max(bounds[i] - point[i], point[i] - bounds[i + DIMENSIONS]));
+                distance += diff * diff;
+            }
+
+            return distance;
+        }
+
+        /**
+         * @return key of the Morton cell which contains the whole subtree, null if it spans many
+         */
+        private Long cell(int level) {
+            var min = MortonCode.cell(bounds[0], bounds[1], bounds[2], level);
+            var max = MortonCode.cell(bounds[3], bounds[4], bounds[5], level);
+
+            return min == max ? min : null;
+        }
+
+        public T getValue() {
+            return value;
+        }
+
+        public boolean isDeleted() {
+            return deleted;
+        }
+    }
+
+    private static double[] boundsOf(Positioned value) {
+        return new double[]{
+                value.getX(), value.getY(), value.getZ(),
+                value.getX(), value.getY(), value.getZ()
+        };
+    }
+
+    private static int count(Node<?> node) {
+        return node != null ? node.count : 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Bounding box of every value inserted since the last build, removed ones included.
+     *
+     * @return {minX, minY, minZ, maxX, maxY, maxZ}, null if the tree is empty
+     */
+    public double[] bounds() {
+        return root != null ? root.bounds.clone() : null;
+    }
+
+    /**
+     * Replaces the whole content of the tree with given values.
+     *
+     * @param values values to be stored
+     * @return nodes of the values, in the same order
+     */
+    public List<Node<T>> build(@NotNull Collection<? extends T> values) {
+        var nodes = new ArrayList<Node<T>>(values.size());
+        for (var value : values) {
+            nodes.add(new Node<>(value, 0));
+        }
+
+        root = link(new ArrayList<>(nodes), 0, nodes.size(), 0);
+        size = nodes.size();
+        removed = 0;
+        builtSize = size;
+
+        return nodes;
+    }
+
+    /**
+     * Links the nodes of the range into a balanced subtree, splitting on the axis of the depth.
+     */
+    private Node<T> link(List<Node<T>> nodes, int from, int to, int depth) {
+        if (from >= to) {
+            return null;
+        }
+
+        var axis = depth % DIMENSIONS;
+        nodes.subList(from, to).sort(Comparator.comparingDouble(node -> node.value.coordinate(axis)));
+
+        var median = (from + to) >>> 1;
+        var node = nodes.get(median);
+        node.axis = axis;
+        node.left = link(nodes, from, median, depth + 1);
+        node.right = link(nodes, median + 1, to, depth + 1);
+        node.count = 1 + count(node.left) + count(node.right);
+
+        System.arraycopy(boundsOf(node.value), 0, node.bounds, 0, node.bounds.length);
+        if (node.left != null) {
+            node.include(node.left.bounds);
+        }
+        if (node.right != null) {
+            node.include(node.right.bounds);
+        }
+
+        return node;
+    }
+
+    /**
+     * Inserts a value into the tree. Nodes are relinked but never replaced by insertions,
+     * so the nodes returned before stay valid until the next {@link #build}.
+     *
+     * @param value value to be inserted
+     * @return node of the value
+     */
+    public Node<T> insert(@NotNull T value) {
+        size++;
+
+        if (root == null) {
+            root = new Node<>(value, 0);
+            return root;
+        }
+
+        var point = boundsOf(value);
+        var path = new ArrayList<Node<T>>();
+        var node = root;
+        while (true) {
+            path.add(node);
+            node.include(point);
+            node.count++;
+
+            var goLeft = value.coordinate(node.axis) < node.value.coordinate(node.axis);
+            var next = goLeft ? node.left : node.right;
+
+            if (next == null) {
+                var created = new Node<>(value, (node.axis + 1) % DIMENSIONS);
+                if (goLeft) {
+                    node.left = created;
+                } else {
+                    node.right = created;
+                }
+                path.add(created);
+                rebalance(path);
+                return created;
+            }
+
+            node = next;
+        }
+    }
+
+    /**
+     * Rebuilds the deepest subtree on the path whose child is too heavy, if the path is
+     * deeper than a tree of this many nodes should be.
+     */
+    private void rebalance(List<Node<T>> path) {
+        var maxDepth = Math.log(root.count) / Math.log(1 / BALANCE) + 1;
+        if (path.size() - 1 <= maxDepth) {
+            return;
+        }
+
+        for (int depth = path.size() - 2; depth >= 0; depth--) {
+            var node = path.get(depth);
+            if (path.get(depth + 1).count > BALANCE * node.count) {
+                var rebuilt = rebuild(node, depth);
+                if (depth == 0) {
+                    root = rebuilt;
+                } else if (path.get(depth - 1).left == node) {
+                    path.get(depth - 1).left = rebuilt;
+                } else {
+                    path.get(depth - 1).right = rebuilt;
+                }
+
+                // Removed nodes were dropped from the subtree
+                var dropped = node.count - count(rebuilt);
+                for (int i = 0; i < depth; i++) {
+                    path.get(i).count -= dropped;
+                }
+                return;
+            }
+        }
+    }
+
+    private Node<T> rebuild(Node<T> subtree, int depth) {
+        var nodes = new ArrayList<Node<T>>(subtree.count);
+        var stack = new ArrayDeque<Node<T>>();
+        stack.push(subtree);
+
+        while (!stack.isEmpty()) {
+            var node = stack.pop();
+            if (node.deleted) {
+                removed--;
+            } else {
+                nodes.add(node);
+            }
+            if (node.left != null) {
+                stack.push(node.left);
+            }
+            if (node.right != null) {
+                stack.push(node.right);
+            }
+        }
+
+        return link(nodes, 0, nodes.size(), depth);
+    }
+
+    /**
+     * Marks the node as removed, it is skipped by queries until the next rebuild.
+     *
+     * @param node node to be removed
+     */
+    public void remove(@NotNull Node<T> node) {
+        if (node.deleted) {
+            return;
+        }
+
+        node.deleted = true;
+        size--;
+        removed++;
+    }
+
+    /**
+     * Tells whether enough nodes were removed since the last build that the tree
+     * should be rebuilt.
+     *
+     * @return true if the tree holds too many removed nodes
+     */
+    public boolean needsRebuild() {
+        return removed > Math.max(MIN_REBUILD_THRESHOLD, builtSize);
+    }
+
+    /**
+     * Collects all live values of the tree.
+     *
+     * @return values of the tree
+     */
+    public List<T> values() {
+        var values = new ArrayList<T>(size);
+        if (root == null) {
+            return values;
+        }
+
+        var stack = new ArrayDeque<Node<T>>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            var node = stack.pop();
+            if (!node.deleted) {
+                values.add(node.value);
+            }
+            if (node.right != null) {
+                stack.push(node.right);
+            }
+            if (node.left != null) {
+                stack.push(node.left);
+            }
+        }
+
+        return values;
+    }
+
+    /**
+     * Finds all values whose euclidean distance to the given point is less than or equal to radius.
+     *
+     * @return values in no particular order
+     */
+    public List<T> withinRadius(double x, double y, double z, double radius) {
+        var result = new ArrayList<T>();
+        if (root == null) {
+            return result;
+        }
+
+        var point = new double[]{x, y, z};
+        var radiusSquared = radius * radius;
+        var stack = new ArrayDeque<Node<T>>();
+        stack.push(root);
+
+        while (!stack.isEmpty()) {
+            var node = stack.pop();
+
+            if (!node.deleted && node.value.distanceSquared(x, y, z) <= radiusSquared) {
+                result.add(node.value);
+            }
+
+            var diff = point[node.axis] - node.value.coordinate(node.axis);
+            var near = diff < 0 ? node.left : node.right;
+            var far = diff < 0 ? node.right : node.left;
+
+            if (far != null && diff * diff <= radiusSquared) {
+                stack.push(far);
+            }
+            if (near != null) {
+                stack.push(near);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Runs many radius searches in a single traversal. Every subtree is visited once with
+     * the queries whose sphere can reach it, so overlapping queries share the work.
+     *
+     * @param queries {x, y, z, radius} of each query
+     * @return values in each sphere in no particular order, in the order of the queries
+     */
+    public List<List<T>> withinRadii(@NotNull List<double[]> queries) {
+        var results = new ArrayList<List<T>>(queries.size());
+        var active = new int[queries.size()];
+        var radiiSquared = new double[queries.size()];
+
+        for (int i = 0; i < queries.size(); i++) {
+            results.add(new ArrayList<>());
+            active[i] = i;
+            radiiSquared[i] = queries.get(i)[3] * queries.get(i)[3];
+        }
+
+        if (root == null || active.length == 0) {
+            return results;
+        }
+
+        var stack = new ArrayDeque<Visit<T>>();
+        stack.push(new Visit<>(root, active, active.length));
+
+        while (!stack.isEmpty()) {
+            var visit = stack.pop();
+            var node = visit.node;
+
+            var left = new int[visit.count];
+            var right = new int[visit.count];
+            var leftCount = 0;
+            var rightCount = 0;
+
+            for (int i = 0; i < visit.count; i++) {
+                var index = visit.active[i];
+                var query = queries.get(index);
+                var radiusSquared = radiiSquared[index];
+
+                if (!node.deleted && node.value.distanceSquared(query[0], query[1], query[2]) <= radiusSquared) {
+                    results.get(index).add(node.value);
+                }
+
+                var diff = query[node.axis] - node.value.coordinate(node.axis);
+                var reachesFar = diff * diff <= radiusSquared;
+                if (diff < 0 || reachesFar) {
+                    left[leftCount++] = index;
+                }
+                if (diff >= 0 || reachesFar) {
+                    right[rightCount++] = index;
+                }
+            }
+
+            if (node.right != null && rightCount > 0) {
+                stack.push(new Visit<>(node.right, right, rightCount));
+            }
+            if (node.left != null && leftCount > 0) {
+                stack.push(new Visit<>(node.left, left, leftCount));
+            }
+        }
+
+        return results;
+    }
+
+    private static final class Visit<T extends Positioned> {
+        private final Node<T> node;
+        private final int[] active;
+        private final int count;
+
+        private Visit(Node<T> node, int[] active, int count) {
+            this.node = node;
+            this.active = active;
+            this.count = count;
+        }
+    }
+
+    /**
+     * Picks one value of each Morton cell of given level which has a value in the sphere.
+     * Subtrees whose bounding box lies in a single cell that is already taken are not
+     * visited further, so the cost depends on the number of cells rather than the number
+     * of values.
+     *
+     * @param cells taken cells, picked ones are added to it
+     * @return representatives in no particular order
+     */
+    public List<T> sample(double x, double y, double z, double radius, int level, @NotNull Set<Long> cells) {
+        var result = new ArrayList<T>();
+        if (root == null) {
+            return result;
+        }
+
+        var point = new double[]{x, y, z};
+        var radiusSquared = radius * radius;
+        var stack = new ArrayDeque<Node<T>>();
+        stack.push(root);
+
+        while (!stack.isEmpty()) {
+            var node = stack.pop();
+            if (node.distanceSquared(point) > radiusSquared) {
+                continue;
+            }
+
+            var cell = node.cell(level);
+            if (cell != null && cells.contains(cell)) {
+                continue;
+            }
+
+            if (!node.deleted && node.value.distanceSquared(x, y, z) <= radiusSquared &&
+                    cells.add(MortonCode.cell(node.value.getX(), node.value.getY(), node.value.getZ(), level))) {
+                result.add(node.value);
+            }
+
+            if (node.right != null) {
+                stack.push(node.right);
+            }
+            if (node.left != null) {
+                stack.push(node.left);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Finds the k values closest to the given point. Nearer subtrees are visited first
+     * and the candidates are kept in a max-heap bounded by k, so subtrees which can not
+     * beat the current k-th candidate are pruned.
+     *
+     * @return at most k values ordered by their distance to the point
+     */
+    public List<T> nearest(double x, double y, double z, int k) {
+        if (k <= 0) {
+            return new ArrayList<>();
+        }
+
+        var heap = new PriorityQueue<Candidate<T>>(Math.max(1, Math.min(k, size)), Comparator.comparingDouble(
+                (Candidate<T> candidate) -> candidate.distanceSquared).reversed());
+
+        if (root != null) {
+            var point = new double[]{x, y, z};
+            // Subtrees with the squared distance to their splitting plane, pruned when popped
+            var stack = new ArrayDeque<Candidate<Node<T>>>();
+            stack.push(new Candidate<>(root, 0));
+
+            while (!stack.isEmpty()) {
+                var entry = stack.pop();
+                if (heap.size() >= k && entry.distanceSquared >= heap.peek().distanceSquared) {
+                    continue;
+                }
+
+                var node = entry.value;
+                if (!node.deleted) {
+                    var distanceSquared = node.value.distanceSquared(x, y, z);
+                    if (heap.size() < k) {
+                        heap.add(new Candidate<>(node.value, distanceSquared));
+                    } else if (distanceSquared < heap.peek().distanceSquared) {
+                        heap.poll();
+                        heap.add(new Candidate<>(node.value, distanceSquared));
+                    }
+                }
+
+                var diff = point[node.axis] - node.value.coordinate(node.axis);
+                var near = diff < 0 ? node.left : node.right;
+                var far = diff < 0 ? node.right : node.left;
+
+                if (far != null) {
+                    stack.push(new Candidate<>(far, Math.max(entry.distanceSquared, diff * diff)));
+                }
+                if (near != null) {
+                    stack.push(new Candidate<>(near, entry.distanceSquared));
+                }
+            }
+        }
+
+        var result = new ArrayList<T>(heap.size());
+        heap.stream()
+                .sorted(Comparator.comparingDouble(candidate -> candidate.distanceSquared))
+                .forEach(candidate -> result.add(candidate.value));
+
+        return result;
+    }
+
+    private static final class Candidate<T> {
+        private final T value;
+        private final double distanceSquared;
+
+        private Candidate(T value, double distanceSquared) {
+            this.value = value;
+            this.distanceSquared = distanceSquared;
+        }
+    }
+}
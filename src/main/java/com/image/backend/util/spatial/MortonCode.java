@@ -0,0 +1,220 @@
+package com.image.backend.util.spatial;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Z-order (Morton) codes of the image positions. Coordinates are quantized into cells of
+ * {@link #CELL_SIZE} and the 21 bits of each axis are interleaved into a 63 bit key, so that
+ * nearby cells get nearby keys and a box can be looked up with a few B-tree range scans.
+ * <p>
+ * Quantization must match the backfill in the V20261018.3 migration.
+ */
+public class MortonCode {
+    public static final double CELL_SIZE = 0.1;
+
+    public static final int MAX_LEVEL = 20;
+
+    private static final int BITS = 21;
+    private static final long MAX_CELL = (1L << BITS) - 1;
+    private static final long OFFSET = 1L << (BITS - 1);
+
+    /**
+     * Lower bound of the coordinates which get distinct codes, values out of the bounds
+     * are clamped to the nearest cell.
+     */
+    public static final double MIN_COORDINATE = -OFFSET * CELL_SIZE;
+
+    public static final double MAX_COORDINATE = (MAX_CELL + 1 - OFFSET) * CELL_SIZE;
+
+    /**
+     * Missing coordinates are quantized as 0, infinite ones to the outermost cell.
+     *
+     * @throws IllegalArgumentException if the value is NaN
+     */
+    public static long quantize(Double value) {
+        var coordinate = value != null ? value : 0d;
+        if (Double.isNaN(coordinate)) {
+            throw new IllegalArgumentException("coordinate must be a number");
+        }
+
+        // Clamped before the cast, a saturated long would wrap once the offset is added
+        var cell = Math.floor(coordinate / CELL_SIZE) + OFFSET;
+
+        return (long) Math.max(0, Math.min(MAX_CELL, cell));
+    }
+
+    /**
+     * @throws IllegalArgumentException if a coordinate is not finite, such positions are not stored
+     */
+    public static long encode(Double x, Double y, Double z) {
+        if (!isFinite(x) || !isFinite(y) || !isFinite(z)) {
+            throw new IllegalArgumentException("coordinates must be finite");
+        }
+
+        return interleave(quantize(x), quantize(y), quantize(z));
+    }
+
+    private static boolean isFinite(Double value) {
+        return value == null || Double.isFinite(value);
+    }
+
+    /**
+     * Key of the octree cell at given level which contains the point, cells of level 0
+     * are the quantization cells and every level doubles their edge.
+     */
+    public static long cell(double x, double y, double z, int level) {
+        return encode(x, y, z) >>> (3 * level);
+    }
+
+    public static double cellSize(int level) {
+        return CELL_SIZE * (1L << level);
+    }
+
+    /**
+     * Finds the lowest level whose cells are large enough that the sphere contains
+     * about count of them.
+     */
+    public static int levelFor(double radius, int count) {
+        var sphereVolume = 4 * Math.PI / 3 * radius * radius * radius;
+        var cellSize = Math.cbrt(sphereVolume / Math.max(1, count));
+        var level = (int) Math.ceil(Math.log(cellSize / CELL_SIZE) / Math.log(2));
+
+        return Math.max(0, Math.min(MAX_LEVEL, level));
+    }
+
+    private static long interleave(long x, long y, long z) {
+        return split(x) | split(y) << 1 | split(z) << 2;
+    }
+
+    private static long split(long value) {
+        value &= MAX_CELL;
+        value = (value | value << 32) & 0x1f00000000ffffL;
+        value = (value | value << 16) & 0x1f0000ff0000ffL;
+        value = (value | value << 8) & 0x100f00f00f00f00fL;
+        value = (value | value << 4) & 0x10c30c30c30c30c3L;
+        value = (value | value << 2) & 0x1249249249249249L;
+
+        return value;
+    }
+
+    /**
+     * Decomposes the box into Morton key ranges. Octree cells are subdivided breadth first
+     * into their children which intersect the box, while the number of cells stays under
+     * the limit; cells which are still partially covered are returned whole, so the ranges
+     * may contain keys outside of the box.
+     *
+     * @param maxRanges upper limit of the number of ranges before merging
+     * @return sorted, non-overlapping inclusive ranges as {from, to} pairs
+     */
+    public static List<long[]> ranges(double minX, double minY, double minZ,
+                                      double maxX, double maxY, double maxZ,
+                                      int maxRanges) {
+        // One extra cell on each side covers rounding differences of the stored keys.
+        var min = new long[]{
+                Math.max(0, quantize(minX) - 1),
+                Math.max(0, quantize(minY) - 1),
+                Math.max(0, quantize(minZ) - 1)
+        };
+        var max = new long[]{
+                Math.min(MAX_CELL, quantize(maxX) + 1),
+                Math.min(MAX_CELL, quantize(maxY) + 1),
+                Math.min(MAX_CELL, quantize(maxZ) + 1)
+        };
+
+        var ranges = new ArrayList<long[]>();
+        var queue = new ArrayDeque<Cell>();
+        queue.add(new Cell(0, 0, 0, BITS));
+
+        while (!queue.isEmpty()) {
+            var cell = queue.poll();
+            var size = 1L << cell.level;
+
+            if (cell.level == 0 || cell.isInside(min, max, size)) {
+                ranges.add(cell.range());
+                continue;
+            }
+
+            // Only the cells which reach the box count against the limit
+            var children = cell.children(min, max);
+            if (ranges.size() + queue.size() + children.size() > Math.max(1, maxRanges)) {
+                ranges.add(cell.range());
+                continue;
+            }
+
+            queue.addAll(children);
+        }
+
+        return merge(ranges);
+    }
+
+    private static List<long[]> merge(List<long[]> ranges) {
+        ranges.sort(Comparator.comparingLong(range -> range[0]));
+
+        var merged = new ArrayList<long[]>();
+        for (var range : ranges) {
+            var last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && last[1] + 1 >= range[0]) {
+                last[1] = Math.max(last[1], range[1]);
+            } else {
+                merged.add(range);
+            }
+        }
+
+        return merged;
+    }
+
+    private static final class Cell {
+        private final long x;
+        private final long y;
+        private final long z;
+        private final int level;
+
+        private Cell(long x, long y, long z, int level) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.level = level;
+        }
+
+        private long[] range() {
+            var size = 1L << level;
+            var from = interleave(x, y, z);
+
+            return new long[]{from, from + size * size * size - 1};
+        }
+
+        private List<Cell> children(long[] min, long[] max) {
+            var half = 1L << (level - 1);
+            var children = new ArrayList<Cell>(8);
+
+            for (int i = 0; i < 8; i++) {
+                var child = new Cell(
+                        x + ((i & 1) != 0 ? half : 0),
+                        y + ((i & 2) != 0 ? half : 0),
+                        z + ((i & 4) != 0 ? half : 0),
+                        level - 1
+                );
+                if (child.intersects(min, max, half)) {
+                    children.add(child);
+                }
+            }
+
+            return children;
+        }
+
+        private boolean intersects(long[] min, long[] max, long size) {
+            return x <= max[0] && x + size - 1 >= min[0] &&
+                    y <= max[1] && y + size - 1 >= min[1] &&
+                    z <= max[2] && z + size - 1 >= min[2];
+        }
+
+        private boolean isInside(long[] min, long[] max, long size) {
+            return x >= min[0] && x + size - 1 <= max[0] &&
+                    y >= min[1] && y + size - 1 <= max[1] &&
+                    z >= min[2] && z + size - 1 <= max[2];
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.image.backend.util.spatial;
+
+/**
+ * Anything which has a position in the 3D scene and can be put into a spatial structure.
+ */
+public interface Positioned {
+    double getX();
+
+    double getY();
+
+    double getZ();
+
+    default double coordinate(int axis) {
+        switch (axis) {
+            case 0:
+                return getX();
+            case 1:
+                return getY();
+            default:
+                return getZ();
+        }
+    }
+
+    default double distanceSquared(double x, double y, double z) {
+        var dx = getX() - x;
+        var dy = getY() - y;
+        var dz = getZ() - z;
+
+        return dx * dx + dy * dy + dz * dz;
+    }
+}
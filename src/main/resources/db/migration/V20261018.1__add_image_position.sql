@@ -0,0 +1,10 @@
+alter table images
+    add column position point null;
+
+update images
+set position = Point(coalesce(x, 0), coalesce(y, 0));
+
+alter table images
+    modify position point not null;
+
+create spatial index images_position_index on images (position);
@@ -0,0 +1 @@
+create index images_coordinate_index on images (x, y, z);
@@ -0,0 +1,36 @@
+alter table images
+    add column morton bigint null;
+
+-- Same quantization and bit interleaving as com.image.backend.util.spatial.MortonCode
+DELIMITER $$
+create function image_morton_code(value double) returns bigint deterministic
+begin
+    return greatest(0, least(2097151, floor(coalesce(value, 0) / 0.1) + 1048576));
+end $$
+
+create function image_morton_interleave(x bigint, y bigint, z bigint) returns bigint deterministic
+begin
+    declare code bigint default 0;
+    declare i int default 0;
+    while i < 21
+        do
+            set code = code
+                | (((x >> i) & 1) << (3 * i))
+                | (((y >> i) & 1) << (3 * i + 1))
+                | (((z >> i) & 1) << (3 * i + 2));
+            set i = i + 1;
+        end while;
+    return code;
+end $$
+DELIMITER ;
+
+update images
+set morton = image_morton_interleave(image_morton_code(x), image_morton_code(y), image_morton_code(z));
+
+drop function image_morton_interleave;
+drop function image_morton_code;
+
+alter table images
+    modify morton bigint not null;
+
+create index images_morton_index on images (morton);
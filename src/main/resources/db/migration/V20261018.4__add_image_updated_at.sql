@@ -0,0 +1,4 @@
+alter table images
+    add column updated_at timestamp(3) not null default current_timestamp(3) on update current_timestamp(3);
+
+create index images_updated_at_index on images (updated_at);
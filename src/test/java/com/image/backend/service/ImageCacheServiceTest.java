@@ -0,0 +1,153 @@
+package com.image.backend.service;
+
+import com.image.backend.config.ImageConfig;
+import com.image.backend.dto.image.ImageRequest;
+import com.image.backend.dto.image.PointZ;
+import com.image.backend.repository.ImagePosition;
+import com.image.backend.util.spatial.IndexedImage;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ImageCacheServiceTest {
+    private ImageConfig imageConfig;
+    private ImageCacheService imageCacheService;
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @BeforeEach
+    void setUp() {
+        imageConfig = mock(ImageConfig.class);
+        when(imageConfig.isCacheEnabled()).thenReturn(true);
+        when(imageConfig.getCacheCellSize()).thenReturn(1.0);
+        when(imageConfig.getCacheRadiusStep()).thenReturn(1.0);
+        when(imageConfig.getCacheMaxEntries()).thenReturn(4096);
+        when(imageConfig.getCacheMaxImages()).thenReturn(1_000_000);
+        when(imageConfig.getCacheTtl()).thenReturn(60L);
+
+        imageCacheService = new ImageCacheService(imageConfig, new SimpleMeterRegistry());
+    }
+
+    private List<IndexedImage> find(double x, double y, double z, double radius) {
+        return imageCacheService.find(PointZ.of(x, y, z), radius, (point, covering) -> {
+            loads.incrementAndGet();
+            return new ArrayList<>();
+        });
+    }
+
+    private static ImageRequest image(double x, double y, double z) {
+        return new ImageRequest("image.jpg", PointZ.of(x, y, z));
+    }
+
+    private static ImagePosition position(double x, double y, double z) {
+        return new ImagePosition() {
+            public Long getId() {
+                return 1L;
+            }
+
+            public String getName() {
+                return "image.jpg";
+            }
+
+            public Double getX() {
+                return x;
+            }
+
+            public Double getY() {
+                return y;
+            }
+
+            public Double getZ() {
+                return z;
+            }
+
+            public String getUrl() {
+                return null;
+            }
+        };
+    }
+
+    @Test
+    void keepsEntriesAwayFromUploads() {
+        find(0.5, 0.5, 0.5, 2);
+        imageCacheService.evictAfterCommit(List.of(image(100, 100, 100)), List.of());
+        find(0.5, 0.5, 0.5, 2);
+
+        assertThat(loads).hasValue(1);
+    }
+
+    @Test
+    void evictsEntriesAroundNewPositions() {
+        find(0.5, 0.5, 0.5, 2);
+        imageCacheService.evictAfterCommit(List.of(image(1.5, 0.5, 0.5)), List.of());
+        find(0.5, 0.5, 0.5, 2);
+
+        assertThat(loads).hasValue(2);
+    }
+
+    @Test
+    void evictsEntriesAroundOldPositions() {
+        find(0.5, 0.5, 0.5, 2);
+        imageCacheService.evictAfterCommit(List.of(image(100, 100, 100)), List.of(position(0.5, 1.5, 0.5)));
+        find(0.5, 0.5, 0.5, 2);
+
+        assertThat(loads).hasValue(2);
+    }
+
+    @Test
+    void expiresEntriesAfterTtl() {
+        when(imageConfig.getCacheTtl()).thenReturn(0L);
+
+        find(0.5, 0.5, 0.5, 2);
+        find(0.5, 0.5, 0.5, 2);
+
+        assertThat(loads).hasValue(2);
+    }
+
+    @Test
+    void evictsExactlyTheSpheresWhichContainThePosition() {
+        var random = new Random(7);
+        var queries = new ArrayList<double[]>();
+        for (int i = 0; i < 500; i++) {
+            queries.add(new double[]{
+                    random.nextDouble() * 40 - 20, random.nextDouble() * 40 - 20, random.nextDouble() * 40 - 20,
+                    0.5 + random.nextDouble() * (i % 10 == 0 ? 30 : 3)
+            });
+        }
+        queries.forEach(query -> find(query[0], query[1], query[2], query[3]));
+
+        var upload = new double[]{random.nextDouble() * 20 - 10, random.nextDouble() * 20 - 10, 0};
+        imageCacheService.evictAfterCommit(List.of(image(upload[0], upload[1], upload[2])), List.of());
+
+        var checked = new HashSet<List<Double>>();
+        for (var query : queries) {
+            // Center and radius of the entry which covers the query, each entry is checked once
+            var covering = Math.max(1, Math.ceil(query[3])) + Math.sqrt(3) / 2;
+            if (!checked.add(List.of(Math.floor(query[0]), Math.floor(query[1]), Math.floor(query[2]), covering))) {
+                continue;
+            }
+
+            var center = new double[3];
+            var distanceSquared = 0d;
+            for (int i = 0; i < 3; i++) {
+                center[i] = Math.floor(query[i]) + 0.5;
+                distanceSquared += (center[i] - upload[i]) * (center[i] - upload[i]);
+            }
+
+            var before = loads.get();
+            find(query[0], query[1], query[2], query[3]);
+            var reloaded = loads.get() > before;
+
+            assertThat(reloaded).isEqualTo(distanceSquared <= covering * covering);
+        }
+    }
+}
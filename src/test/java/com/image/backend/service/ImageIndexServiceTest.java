@@ -0,0 +1,99 @@
+package com.image.backend.service;
+
+import com.image.backend.config.ImageConfig;
+import com.image.backend.dto.image.PointZ;
+import com.image.backend.enums.ESearchStrategy;
+import com.image.backend.model.Image;
+import com.image.backend.repository.ImageRepository;
+import com.image.backend.util.spatial.DistanceCursor;
+import com.image.backend.util.spatial.IndexedImage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ImageIndexServiceTest {
+
+    private final List<Image> rows = new ArrayList<>();
+
+    private ImageIndexService imageIndexService;
+
+    private void add(long id, double x, double y, double z) {
+        var image = new Image();
+        image.setId(id);
+        image.setName("image" + id);
+        image.setX(x);
+        image.setY(y);
+        image.setZ(z);
+        rows.add(image);
+    }
+
+    @BeforeEach
+    void setUp() {
+        // Ids are not in the order of the positions, so ties are not ordered by chance
+        var id = 100;
+        for (var sign : new double[]{1, -1}) {
+            add(id--, sign, 0, 0);
+            add(id--, 0, sign, 0);
+            add(id--, 0, 0, sign);
+            add(id--, 2 * sign, 0, 0);
+            add(id--, 0, 2 * sign, 0);
+        }
+        add(id--, 0, 0, 0);
+        add(id--, 0.5, 0.5, 0.5);
+        add(id, 10, 0, 0);
+
+        var imageConfig = mock(ImageConfig.class);
+        when(imageConfig.getSearchStrategy()).thenReturn(ESearchStrategy.INDEX);
+
+        var imageRepository = mock(ImageRepository.class);
+        when(imageRepository.findAll()).thenReturn(rows);
+
+        imageIndexService = new ImageIndexService(imageRepository, imageConfig);
+        imageIndexService.load();
+    }
+
+    @AfterEach
+    void tearDown() {
+        imageIndexService.shutdown();
+    }
+
+    @Test
+    void pagesThroughTiesWithoutGapsOrRepeats() {
+        var point = PointZ.of(0d, 0d, 0d);
+        var expected = rows.stream()
+                .filter(image -> image.getX() * image.getX() + image.getY() * image.getY() +
+                        image.getZ() * image.getZ() <= 9)
+                .sorted(Comparator.comparingDouble((Image image) ->
+                        image.getX() * image.getX() + image.getY() * image.getY() + image.getZ() * image.getZ()
+                ).thenComparingLong(Image::getId))
+                .map(Image::getId)
+                .collect(Collectors.toList());
+
+        for (var pageSize = 1; pageSize <= 4; pageSize++) {
+            var ids = new ArrayList<Long>();
+            DistanceCursor cursor = null;
+            while (true) {
+                var page = imageIndexService.findWithinRadiusAfter(point, 3, cursor, pageSize);
+                page.stream().map(IndexedImage::getId).forEach(ids::add);
+                if (page.size() < pageSize) {
+                    break;
+                }
+
+                // The cursor goes through its text form, as between requests
+                var last = page.get(page.size() - 1);
+                cursor = DistanceCursor.decode(DistanceCursor.after(last, 0, 0, 0).encode());
+            }
+
+            assertThat(ids).isEqualTo(expected);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.image.backend.util.pose;
+
+import com.image.backend.dto.image.ImageRequest;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+
+class ColmapImagesReaderTest {
+
+    private static List<ImageRequest> read(String body) {
+        var reader = new ColmapImagesReader(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+        var images = new ArrayList<ImageRequest>();
+        reader.forEachRemaining(images::add);
+
+        return images;
+    }
+
+    @Test
+    void readsCameraCenters() {
+        var half = Math.sqrt(0.5);
+        var images = read("" +
+                "# Image list with two lines of data per image:\n" +
+                "1 1 0 0 0 1 2 3 1 a.jpg\n" +
+                "10.0 20.0 -1\n" +
+                // Rotation by 90 degrees about z, not normalized
+                "2 " + 2 * half + " 0 0 " + 2 * half + " 1 0 0 1 b c.jpg\n" +
+                "\n");
+
+        assertThat(images).extracting(ImageRequest::getName).containsExactly("a.jpg", "b c.jpg");
+        assertThat(images.get(0).getPoint().getX()).isEqualTo(-1);
+        assertThat(images.get(0).getPoint().getY()).isEqualTo(-2);
+        assertThat(images.get(0).getPoint().getZ()).isEqualTo(-3);
+        assertThat(images.get(1).getPoint().getX()).isCloseTo(0, within(1e-9));
+        assertThat(images.get(1).getPoint().getY()).isCloseTo(1, within(1e-9));
+        assertThat(images.get(1).getPoint().getZ()).isCloseTo(0, within(1e-9));
+    }
+
+    @Test
+    void rejectsMalformedPoses() {
+        assertThatThrownBy(() -> read("1 1 0 0 0 1 2 3 1\n"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("Line 1: expected 10 fields but found 9");
+        assertThatThrownBy(() -> read("1 0 0 0 0 1 2 3 1 a.jpg\n"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("Line 1: rotation is a zero quaternion");
+        assertThatThrownBy(() -> read("1 1 0 0 0 1 2 3 1 a.jpg\n\n1 1 0 0 0 Infinity 2 3 1 b.jpg\n"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("Line 3: Infinity is not a finite number");
+        assertThatThrownBy(() -> read("1 NaN 0 0 0 1 2 3 1 a.jpg\n"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("Line 1: NaN is not a finite number");
+    }
+
+    @Test
+    void rejectsCentersWhichOverflow() {
+        // Rotation by 45 degrees about z sums both translations into each coordinate
+        var qw = Math.cos(Math.PI / 8);
+        var qz = Math.sin(Math.PI / 8);
+        assertThatThrownBy(() -> read("1 1 0 0 0 1.5e308 1.5e308 0 1 a.jpg\n" + "\n" +
+                "2 " + qw + " 0 0 " + qz + " 1.5e308 1.5e308 0 1 b.jpg\n"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("Line 3: coordinates must be finite");
+    }
+}
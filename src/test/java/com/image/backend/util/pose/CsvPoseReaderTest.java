@@ -0,0 +1,90 @@
+package com.image.backend.util.pose;
+
+import com.image.backend.dto.image.ImageRequest;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class CsvPoseReaderTest {
+
+    private static List<ImageRequest> read(String body) {
+        var reader = new CsvPoseReader(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+        var images = new ArrayList<ImageRequest>();
+        reader.forEachRemaining(images::add);
+
+        return images;
+    }
+
+    @Test
+    void readsRowsWithoutHeader() {
+        var images = read("a.jpg,1,2,3\n\nb.jpg, -1.5 ,0,1e2\n");
+
+        assertThat(images).extracting(ImageRequest::getName).containsExactly("a.jpg", "b.jpg");
+        assertThat(images.get(1).getPoint().getX()).isEqualTo(-1.5);
+        assertThat(images.get(1).getPoint().getZ()).isEqualTo(100);
+    }
+
+    @Test
+    void findsColumnsByHeader() {
+        var images = read("z,ignored,NAME,x,y\n3,foo,a.jpg,1,2\n");
+
+        assertThat(images).hasSize(1);
+        assertThat(images.get(0).getName()).isEqualTo("a.jpg");
+        assertThat(images.get(0).getPoint().getX()).isEqualTo(1);
+        assertThat(images.get(0).getPoint().getY()).isEqualTo(2);
+        assertThat(images.get(0).getPoint().getZ()).isEqualTo(3);
+    }
+
+    @Test
+    void readsQuotedFields() {
+        var images = read("name,x,y,z\n\"a, \"\"b\"\".jpg\" , \"1\",2,3\nc.jpg,4,5,6\n");
+
+        assertThat(images).extracting(ImageRequest::getName).containsExactly("a, \"b\".jpg", "c.jpg");
+        assertThat(images.get(0).getPoint().getX()).isEqualTo(1);
+    }
+
+    @Test
+    void rejectsMalformedQuotes() {
+        assertThatThrownBy(() -> read("a.jpg,1,2,3\n\"b\nc.jpg\",1,2,3\n"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("Line 2: quoted field is not closed, fields can not span lines");
+        assertThatThrownBy(() -> read("\"a.jpg\"x,1,2,3\n"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("Line 1: unexpected character after quoted field");
+        assertThatThrownBy(() -> read("a\"b.jpg,1,2,3\n"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("Line 1: quotes are only allowed around a whole field");
+    }
+
+    @Test
+    void rejectsCoordinatesWhichAreNotFinite() {
+        assertThatThrownBy(() -> read("a.jpg,1,2,3\nb.jpg,NaN,2,3\n"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("Line 2: NaN is not a finite number");
+        assertThatThrownBy(() -> read("a.jpg,1,-Infinity,3\n"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("Line 1: -Infinity is not a finite number");
+        assertThatThrownBy(() -> read("a.jpg,1,2,1e400\n"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("Line 1: 1e400 is not a finite number");
+    }
+
+    @Test
+    void rejectsIncompleteRows() {
+        assertThatThrownBy(() -> read("a.jpg,1,2\n"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("Line 1: expected name, x, y and z");
+        assertThatThrownBy(() -> read(",1,2,3\n"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("Line 1: name is required");
+        assertThatThrownBy(() -> read("name,x,y\n"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("Line 1: header has no z column");
+    }
+}
@@ -0,0 +1,63 @@
+package com.image.backend.util.pose;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.image.backend.dto.image.ImageRequest;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class JsonPoseReaderTest {
+
+    private static List<ImageRequest> read(String body) throws IOException {
+        var images = new ArrayList<ImageRequest>();
+        try (var reader = new JsonPoseReader(new ObjectMapper(),
+                new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)))) {
+            reader.forEachRemaining(images::add);
+        }
+
+        return images;
+    }
+
+    @Test
+    void readsArrays() throws IOException {
+        var images = read("[\n" +
+                "  {\"name\": \"a.jpg\", \"point\": {\"x\": 1, \"y\": 2, \"z\": 3}},\n" +
+                "  {\"name\": \"b.jpg\", \"point\": {\"x\": 4, \"y\": 5}}\n" +
+                "]");
+
+        assertThat(images).extracting(ImageRequest::getName).containsExactly("a.jpg", "b.jpg");
+        assertThat(images.get(0).getPoint().getZ()).isEqualTo(3);
+        assertThat(images.get(1).getPoint().getZ()).isNull();
+    }
+
+    @Test
+    void rejectsMissingPointsWithTheirLine() {
+        assertThatThrownBy(() -> read("[\n" +
+                "  {\"name\": \"a.jpg\", \"point\": {\"x\": 1, \"y\": 2, \"z\": 3}},\n" +
+                "  {\"name\": \"b.jpg\",\n" +
+                "   \"point\": null}\n" +
+                "]"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("Line 3: point is required");
+        assertThatThrownBy(() -> read("[{\"point\": {\"x\": 1, \"y\": 2, \"z\": 3}}]"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("Line 1: name is required");
+    }
+
+    @Test
+    void rejectsCoordinatesWhichAreNotFinite() {
+        assertThatThrownBy(() -> read("[\n{\"name\": \"a.jpg\", \"point\": {\"x\": \"NaN\", \"y\": 2, \"z\": 3}}]"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("Line 2: coordinates must be finite");
+        assertThatThrownBy(() -> read("[{\"name\": \"a.jpg\", \"point\": {\"x\": 1, \"y\": 1e400, \"z\": 3}}]"))
+                .isInstanceOf(IllegalArgumentException.class)
+                .hasMessage("Line 1: coordinates must be finite");
+    }
+}
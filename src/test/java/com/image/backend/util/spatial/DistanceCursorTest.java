@@ -0,0 +1,63 @@
+package com.image.backend.util.spatial;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Base64;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class DistanceCursorTest {
+
+    private static IndexedImage image(long id, double x, double y, double z) {
+        return new IndexedImage(id, "image" + id, x, y, z, null);
+    }
+
+    private static String encode(String value) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(value.getBytes());
+    }
+
+    @Test
+    void decodesWhatItEncodes() {
+        var random = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            var cursor = DistanceCursor.after(
+                    image(random.nextLong() & Long.MAX_VALUE, random.nextGaussian() * 1e4,
+                            random.nextGaussian(), random.nextGaussian() * 1e-3),
+                    random.nextDouble(), random.nextDouble(), random.nextDouble()
+            );
+
+            var decoded = DistanceCursor.decode(cursor.encode());
+
+            assertThat(decoded).isNotNull();
+            assertThat(decoded.getDistanceSquared()).isEqualTo(cursor.getDistanceSquared());
+            assertThat(decoded.getId()).isEqualTo(cursor.getId());
+        }
+    }
+
+    @Test
+    void rejectsMalformedCursors() {
+        assertThat(DistanceCursor.decode("")).isNull();
+        assertThat(DistanceCursor.decode("not base64!")).isNull();
+        assertThat(DistanceCursor.decode(encode("1.5"))).isNull();
+        assertThat(DistanceCursor.decode(encode("1.5,2,3"))).isNull();
+        assertThat(DistanceCursor.decode(encode("x,2"))).isNull();
+        assertThat(DistanceCursor.decode(encode("1.5,x"))).isNull();
+        assertThat(DistanceCursor.decode(encode("NaN,2"))).isNull();
+        assertThat(DistanceCursor.decode(encode("Infinity,2"))).isNull();
+        assertThat(DistanceCursor.decode(encode("-1,2"))).isNull();
+    }
+
+    @Test
+    void ordersByDistanceThenId() {
+        var cursor = DistanceCursor.after(image(5, 1, 0, 0), 0, 0, 0);
+
+        assertThat(cursor.isAfterCursor(image(1, 2, 0, 0), 0, 0, 0)).isTrue();
+        assertThat(cursor.isAfterCursor(image(9, 0.5, 0, 0), 0, 0, 0)).isFalse();
+
+        // Ties of distance are broken by id
+        assertThat(cursor.isAfterCursor(image(6, 0, 1, 0), 0, 0, 0)).isTrue();
+        assertThat(cursor.isAfterCursor(image(4, 0, 0, -1), 0, 0, 0)).isFalse();
+        assertThat(cursor.isAfterCursor(image(5, 1, 0, 0), 0, 0, 0)).isFalse();
+    }
+}
@@ -0,0 +1,83 @@
+package com.image.backend.util.spatial;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+
+class FrustumTest {
+
+    private static IndexedImage point(double x, double y, double z) {
+        return new IndexedImage(0, "image", x, y, z, null);
+    }
+
+    @Test
+    void looksTowardsNegativeZWithoutRotation() {
+        var frustum = new Frustum(0, 0, 0, 0, 0, 0, 1, 90, 2, 1, 10);
+
+        assertThat(frustum.contains(point(0, 0, -5))).isTrue();
+        assertThat(frustum.contains(point(0, 0, 5))).isFalse();
+        assertThat(frustum.contains(point(0, 0, -0.5))).isFalse();
+        assertThat(frustum.contains(point(0, 0, -10.5))).isFalse();
+
+        // A fov of 90 degrees reaches as far up as deep, the aspect doubles the width
+        assertThat(frustum.contains(point(0, 4.9, -5))).isTrue();
+        assertThat(frustum.contains(point(0, 5.1, -5))).isFalse();
+        assertThat(frustum.contains(point(9.9, 0, -5))).isTrue();
+        assertThat(frustum.contains(point(10.1, 0, -5))).isFalse();
+    }
+
+    @Test
+    void rotatesWithTheOrientation() {
+        // 90 degrees about y, not normalized
+        var half = Math.sqrt(0.5);
+        var frustum = new Frustum(1, 2, 3, 0, 3 * half, 0, 3 * half, 60, 1, 1, 10);
+
+        assertThat(frustum.contains(point(-4, 2, 3))).isTrue();
+        assertThat(frustum.contains(point(1, 2, -2))).isFalse();
+        assertThat(frustum.contains(point(6, 2, 3))).isFalse();
+        assertThat(frustum.getCenter()[0]).isCloseTo(-4.5, within(1e-9));
+        assertThat(frustum.getCenter()[1]).isCloseTo(2, within(1e-9));
+        assertThat(frustum.getCenter()[2]).isCloseTo(3, within(1e-9));
+        assertThat(frustum.distanceSquared(point(-4, 2, 3))).isEqualTo(25);
+    }
+
+    @Test
+    void boundingSphereContainsTheFrustum() {
+        var random = new Random(1);
+        for (int i = 0; i < 20; i++) {
+            var frustum = new Frustum(
+                    random.nextGaussian() * 10, random.nextGaussian() * 10, random.nextGaussian() * 10,
+                    random.nextGaussian(), random.nextGaussian(), random.nextGaussian(), random.nextGaussian(),
+                    1 + random.nextDouble() * 170, 0.2 + random.nextDouble() * 3,
+                    random.nextDouble() * 5, 5 + random.nextDouble() * 50
+            );
+            var center = frustum.getCenter();
+            var radius = frustum.getBoundingRadius();
+
+            var inside = 0;
+            for (int j = 0; j < 20000; j++) {
+                var point = point(
+                        center[0] + (random.nextDouble() * 2 - 1) * radius * 1.5,
+                        center[1] + (random.nextDouble() * 2 - 1) * radius * 1.5,
+                        center[2] + (random.nextDouble() * 2 - 1) * radius * 1.5
+                );
+                if (frustum.contains(point)) {
+                    inside++;
+                    assertThat(point.distanceSquared(center[0], center[1], center[2]))
+                            .isLessThanOrEqualTo(radius * radius * (1 + 1e-9));
+                }
+            }
+            assertThat(inside).isPositive();
+        }
+    }
+
+    @Test
+    void rejectsZeroQuaternion() {
+        assertThatThrownBy(() -> new Frustum(0, 0, 0, 0, 0, 0, 0, 90, 1, 1, 10))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+}
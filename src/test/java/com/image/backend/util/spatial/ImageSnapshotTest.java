@@ -0,0 +1,152 @@
+package com.image.backend.util.spatial;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ImageSnapshotTest {
+
+    private static final ForkJoinPool pool = new ForkJoinPool(4);
+
+    @TempDir
+    static Path directory;
+
+    private static List<IndexedImage> images;
+
+    private static ImageSnapshot snapshot;
+
+    @BeforeAll
+    static void setUp() throws IOException {
+        var random = new Random(1);
+        images = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            // Every third image has no url yet, names are not all ASCII
+            images.add(new IndexedImage(i, "image-" + i + (i % 5 == 0 ? "-ü" : ""),
+                    random.nextDouble() * 100, random.nextDouble() * 100, random.nextDouble() * 10,
+                    i % 3 == 0 ? null : "https://bucket/image-" + i));
+        }
+
+        var path = directory.resolve("index.snapshot");
+        ImageSnapshot.write(path, 42, images);
+        snapshot = ImageSnapshot.open(path);
+    }
+
+    @AfterAll
+    static void tearDown() {
+        pool.shutdown();
+    }
+
+    private static Set<Long> ids(List<IndexedImage> images) {
+        return images.stream().map(IndexedImage::getId).collect(Collectors.toSet());
+    }
+
+    private static List<IndexedImage> withinRadius(double x, double y, double z, double radius,
+                                                   Predicate<String> excluded) {
+        return images.stream()
+                .filter(image -> image.distanceSquared(x, y, z) <= radius * radius)
+                .filter(image -> !excluded.test(image.getName()))
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    void readsBackWhatWasWritten() {
+        assertThat(snapshot.getStamp()).isEqualTo(42);
+        assertThat(snapshot.size()).isEqualTo(images.size());
+
+        var read = new ArrayList<IndexedImage>();
+        snapshot.forEach(read::add);
+        var byId = read.stream().collect(Collectors.toMap(IndexedImage::getId, image -> image));
+
+        assertThat(byId).hasSize(images.size());
+        for (var image : images) {
+            var copy = byId.get(image.getId());
+            assertThat(copy.getName()).isEqualTo(image.getName());
+            assertThat(copy.getUrl()).isEqualTo(image.getUrl());
+            assertThat(copy.getX()).isEqualTo(image.getX());
+            assertThat(copy.getY()).isEqualTo(image.getY());
+            assertThat(copy.getZ()).isEqualTo(image.getZ());
+        }
+
+        var bounds = snapshot.bounds();
+        assertThat(bounds[0]).isEqualTo(images.stream().mapToDouble(IndexedImage::getX).min().orElseThrow());
+        assertThat(bounds[5]).isEqualTo(images.stream().mapToDouble(IndexedImage::getZ).max().orElseThrow());
+    }
+
+    @Test
+    void matchesScanOfTheImages() {
+        var random = new Random(2);
+        Predicate<String> excluded = name -> name.endsWith("7");
+
+        for (int i = 0; i < 50; i++) {
+            var x = random.nextDouble() * 120 - 10;
+            var y = random.nextDouble() * 120 - 10;
+            var z = random.nextDouble() * 12 - 1;
+            var radius = random.nextDouble() * 20;
+            var expected = withinRadius(x, y, z, radius, excluded);
+
+            assertThat(ids(snapshot.withinRadius(x, y, z, radius, excluded))).isEqualTo(ids(expected));
+            assertThat(ids(snapshot.scan(x, y, z, radius, excluded, pool))).isEqualTo(ids(expected));
+
+            var k = 1 + random.nextInt(50);
+            var nearest = images.stream()
+                    .filter(image -> !excluded.test(image.getName()))
+                    .map(image -> image.distanceSquared(x, y, z))
+                    .sorted()
+                    .limit(k)
+                    .collect(Collectors.toList());
+            assertThat(snapshot.nearest(x, y, z, k, excluded).stream()
+                    .map(image -> image.distanceSquared(x, y, z))
+                    .collect(Collectors.toList()))
+                    .isEqualTo(nearest);
+
+            var level = random.nextInt(8);
+            var cells = new HashSet<Long>();
+            var sample = snapshot.sample(x, y, z, radius, level, cells, excluded);
+            var sampledCells = sample.stream()
+                    .map(image -> MortonCode.cell(image.getX(), image.getY(), image.getZ(), level))
+                    .collect(Collectors.toList());
+
+            assertThat(ids(expected)).containsAll(ids(sample));
+            assertThat(sampledCells).doesNotHaveDuplicates();
+            assertThat(cells).isEqualTo(expected.stream()
+                    .map(image -> MortonCode.cell(image.getX(), image.getY(), image.getZ(), level))
+                    .collect(Collectors.toSet()));
+        }
+    }
+
+    @Test
+    void writesEmptySnapshots() throws IOException {
+        var path = directory.resolve("empty.snapshot");
+        ImageSnapshot.write(path, 7, List.of());
+        var empty = ImageSnapshot.open(path);
+
+        assertThat(empty.size()).isZero();
+        assertThat(empty.bounds()).isNull();
+        assertThat(empty.withinRadius(0, 0, 0, 10, name -> false)).isEmpty();
+        assertThat(empty.nearest(0, 0, 0, 3, name -> false)).isEmpty();
+    }
+
+    @Test
+    void rejectsOtherFiles() throws IOException {
+        var path = directory.resolve("other.snapshot");
+        Files.write(path, new byte[128]);
+
+        assertThatThrownBy(() -> ImageSnapshot.open(path)).isInstanceOf(IOException.class);
+    }
+}
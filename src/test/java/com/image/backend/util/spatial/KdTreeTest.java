@@ -0,0 +1,229 @@
+package com.image.backend.util.spatial;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class KdTreeTest {
+
+    static final class Point implements Positioned {
+        private final double x;
+        private final double y;
+        private final double z;
+
+        Point(double x, double y, double z) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+
+        @Override
+        public double getX() {
+            return x;
+        }
+
+        @Override
+        public double getY() {
+            return y;
+        }
+
+        @Override
+        public double getZ() {
+            return z;
+        }
+    }
+
+    private static Point random(Random random) {
+        return new Point(random.nextDouble() * 100, random.nextDouble() * 100, random.nextDouble() * 10);
+    }
+
+    private static List<Point> withinRadius(Set<Point> points, double x, double y, double z, double radius) {
+        return points.stream()
+                .filter(point -> point.distanceSquared(x, y, z) <= radius * radius)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Compares every query of the tree with a scan of the live points.
+     */
+    private static void assertMatches(KdTree<Point> tree, Set<Point> live, Random random) {
+        assertThat(tree.size()).isEqualTo(live.size());
+        assertThat(new HashSet<>(tree.values())).isEqualTo(live);
+
+        var queries = new ArrayList<double[]>();
+        for (int i = 0; i < 50; i++) {
+            var x = random.nextDouble() * 120 - 10;
+            var y = random.nextDouble() * 120 - 10;
+            var z = random.nextDouble() * 12 - 1;
+            var radius = random.nextDouble() * 15;
+            queries.add(new double[]{x, y, z, radius});
+
+            assertThat(tree.withinRadius(x, y, z, radius))
+                    .containsExactlyInAnyOrderElementsOf(withinRadius(live, x, y, z, radius));
+
+            var k = 1 + random.nextInt(30);
+            var expected = live.stream()
+                    .map(point -> point.distanceSquared(x, y, z))
+                    .sorted()
+                    .limit(k)
+                    .collect(Collectors.toList());
+            assertThat(tree.nearest(x, y, z, k).stream()
+                    .map(point -> point.distanceSquared(x, y, z))
+                    .collect(Collectors.toList()))
+                    .isEqualTo(expected);
+
+            var level = random.nextInt(6);
+            var taken = Set.of(MortonCode.cell(x, y, z, level));
+            var sample = tree.sample(x, y, z, radius, level, new HashSet<>(taken));
+            var sampledCells = sample.stream()
+                    .map(point -> MortonCode.cell(point.getX(), point.getY(), point.getZ(), level))
+                    .collect(Collectors.toList());
+            var expectedCells = withinRadius(live, x, y, z, radius).stream()
+                    .map(point -> MortonCode.cell(point.getX(), point.getY(), point.getZ(), level))
+                    .filter(cell -> !taken.contains(cell))
+                    .collect(Collectors.toSet());
+
+            assertThat(sample).allMatch(point -> live.contains(point) && point.distanceSquared(x, y, z) <= radius * radius);
+            assertThat(sampledCells).doesNotHaveDuplicates();
+            assertThat(new HashSet<>(sampledCells)).isEqualTo(expectedCells);
+        }
+
+        var results = tree.withinRadii(queries);
+        for (int i = 0; i < queries.size(); i++) {
+            var query = queries.get(i);
+            assertThat(results.get(i))
+                    .containsExactlyInAnyOrderElementsOf(withinRadius(live, query[0], query[1], query[2], query[3]));
+        }
+    }
+
+    @Test
+    void matchesScanAfterBuild() {
+        var random = new Random(1);
+        var points = new ArrayList<Point>();
+        for (int i = 0; i < 5000; i++) {
+            points.add(random(random));
+        }
+
+        var tree = new KdTree<Point>();
+        var nodes = tree.build(points);
+
+        assertThat(nodes.stream().map(KdTree.Node::getValue).collect(Collectors.toList())).isEqualTo(points);
+        assertMatches(tree, new HashSet<>(points), random);
+    }
+
+    @Test
+    void matchesScanAfterInsertsAndRemovals() {
+        var random = new Random(2);
+        var tree = new KdTree<Point>();
+        var live = new HashSet<Point>();
+        var nodes = new ArrayList<KdTree.Node<Point>>();
+
+        for (int i = 0; i < 5000; i++) {
+            var point = random(random);
+            nodes.add(tree.insert(point));
+            live.add(point);
+        }
+        for (int i = 0; i < nodes.size(); i += 3) {
+            tree.remove(nodes.get(i));
+            live.remove(nodes.get(i).getValue());
+            assertThat(nodes.get(i).isDeleted()).isTrue();
+        }
+        // Nodes returned before stay valid across the partial rebuilds of later inserts
+        for (int i = 0; i < 5000; i++) {
+            var point = random(random);
+            nodes.add(tree.insert(point));
+            live.add(point);
+        }
+        for (int i = 1; i < nodes.size(); i += 7) {
+            tree.remove(nodes.get(i));
+            live.remove(nodes.get(i).getValue());
+        }
+
+        assertMatches(tree, live, random);
+    }
+
+    @Test
+    void needsRebuildAfterManyRemovals() {
+        var random = new Random(3);
+        var points = new ArrayList<Point>();
+        for (int i = 0; i < 4000; i++) {
+            points.add(random(random));
+        }
+
+        var tree = new KdTree<Point>();
+        var nodes = tree.build(points);
+        for (int i = 0; i < 3000; i++) {
+            tree.remove(nodes.get(i));
+        }
+        assertThat(tree.needsRebuild()).isFalse();
+
+        for (int i = 0; i < 2000; i++) {
+            nodes.add(tree.insert(random(random)));
+        }
+        for (int i = 3000; i < 5500; i++) {
+            tree.remove(nodes.get(i));
+        }
+        assertThat(tree.needsRebuild()).isTrue();
+
+        var live = new HashSet<>(tree.values());
+        tree.build(live);
+
+        assertThat(tree.needsRebuild()).isFalse();
+        assertMatches(tree, live, random);
+    }
+
+    @Test
+    void traversesSortedInsertsWithSmallStack() throws InterruptedException {
+        var tree = new KdTree<Point>();
+        var live = new HashSet<Point>();
+        for (int i = 0; i < 200_000; i++) {
+            var point = new Point(i * 0.0005, 50, 5);
+            tree.insert(point);
+            live.add(point);
+        }
+
+        // A chain of sorted inserts would overflow this stack in a recursive traversal
+        var failure = new AtomicReference<Throwable>();
+        var thread = new Thread(null, () -> {
+            try {
+                assertMatches(tree, live, new Random(4));
+            } catch (Throwable e) {
+                failure.set(e);
+            }
+        }, "kd-tree-test", 256 * 1024);
+        thread.start();
+        thread.join();
+
+        assertThat(failure.get()).isNull();
+    }
+
+    @Test
+    void findsNothingInEmptyTree() {
+        var tree = new KdTree<Point>();
+
+        assertThat(tree.bounds()).isNull();
+        assertThat(tree.withinRadius(0, 0, 0, 10)).isEmpty();
+        assertThat(tree.nearest(0, 0, 0, 5)).isEmpty();
+        assertThat(tree.sample(0, 0, 0, 10, 0, new HashSet<>())).isEmpty();
+        assertThat(tree.withinRadii(List.of(new double[]{0, 0, 0, 1}))).containsExactly(List.of());
+    }
+
+    @Test
+    void ordersNearestByDistance() {
+        var tree = new KdTree<Point>();
+        var points = List.of(new Point(3, 0, 0), new Point(1, 0, 0), new Point(2, 0, 0), new Point(10, 0, 0));
+        points.forEach(tree::insert);
+
+        assertThat(tree.nearest(0, 0, 0, 3)).containsExactly(points.get(1), points.get(2), points.get(0));
+        assertThat(tree.nearest(0, 0, 0, 10)).hasSize(4);
+        assertThat(tree.nearest(0, 0, 0, 0)).isEmpty();
+    }
+}
@@ -0,0 +1,145 @@
+package com.image.backend.util.spatial;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class MortonCodeTest {
+
+    private static final long MAX_CELL = (1L << 21) - 1;
+
+    private static final long OFFSET = 1L << 20;
+
+    // Center of the quantization cell, so that rounding of the division does not move it
+    private static double center(long cell) {
+        return (cell - OFFSET + 0.5) * MortonCode.CELL_SIZE;
+    }
+
+    private static boolean contains(List<long[]> ranges, long key) {
+        return ranges.stream().anyMatch(range -> range[0] <= key && key <= range[1]);
+    }
+
+    @Test
+    void clampsCoordinatesOutOfTheScene() {
+        assertThat(MortonCode.quantize(null)).isEqualTo(OFFSET);
+        assertThat(MortonCode.quantize(0d)).isEqualTo(OFFSET);
+        assertThat(MortonCode.quantize(-MortonCode.CELL_SIZE / 2)).isEqualTo(OFFSET - 1);
+        assertThat(MortonCode.quantize(MortonCode.MIN_COORDINATE - 1)).isZero();
+        assertThat(MortonCode.quantize(MortonCode.MAX_COORDINATE + 1)).isEqualTo(MAX_CELL);
+
+        // Large enough to saturate a long cast, which wrapped around before
+        assertThat(MortonCode.quantize(1e300)).isEqualTo(MAX_CELL);
+        assertThat(MortonCode.quantize(Double.MAX_VALUE)).isEqualTo(MAX_CELL);
+        assertThat(MortonCode.quantize(-Double.MAX_VALUE)).isZero();
+        assertThat(MortonCode.quantize(Double.POSITIVE_INFINITY)).isEqualTo(MAX_CELL);
+        assertThat(MortonCode.quantize(Double.NEGATIVE_INFINITY)).isZero();
+    }
+
+    @Test
+    void rejectsCoordinatesWhichAreNotFinite() {
+        assertThatThrownBy(() -> MortonCode.quantize(Double.NaN)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> MortonCode.encode(Double.NaN, 0d, 0d)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> MortonCode.encode(0d, Double.POSITIVE_INFINITY, 0d))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> MortonCode.encode(0d, 0d, Double.NEGATIVE_INFINITY))
+                .isInstanceOf(IllegalArgumentException.class);
+
+        assertThat(MortonCode.encode(null, null, null)).isEqualTo(MortonCode.encode(0d, 0d, 0d));
+    }
+
+    @Test
+    void encodesDistinctCellsToDistinctKeys() {
+        var keys = new HashSet<Long>();
+        for (long x = OFFSET - 4; x < OFFSET + 4; x++) {
+            for (long y = OFFSET - 4; y < OFFSET + 4; y++) {
+                for (long z = OFFSET - 4; z < OFFSET + 4; z++) {
+                    keys.add(MortonCode.encode(center(x), center(y), center(z)));
+                }
+            }
+        }
+
+        assertThat(keys).hasSize(8 * 8 * 8);
+        assertThat(MortonCode.encode(center(0), center(0), center(0))).isZero();
+        assertThat(MortonCode.encode(center(MAX_CELL), center(MAX_CELL), center(MAX_CELL)))
+                .isEqualTo((1L << 63) - 1);
+    }
+
+    @Test
+    void coversExactlyTheCellsOfTheBoxWithoutLimit() {
+        var random = new Random(1);
+        for (int i = 0; i < 50; i++) {
+            var min = new long[3];
+            var max = new long[3];
+            for (int axis = 0; axis < 3; axis++) {
+                min[axis] = OFFSET - 20 + random.nextInt(40);
+                max[axis] = min[axis] + random.nextInt(8);
+            }
+
+            var ranges = MortonCode.ranges(
+                    center(min[0]), center(min[1]), center(min[2]),
+                    center(max[0]), center(max[1]), center(max[2]),
+                    Integer.MAX_VALUE
+            );
+
+            // The box is widened by one cell on each side
+            var expected = new HashSet<Long>();
+            for (var x = min[0] - 1; x <= max[0] + 1; x++) {
+                for (var y = min[1] - 1; y <= max[1] + 1; y++) {
+                    for (var z = min[2] - 1; z <= max[2] + 1; z++) {
+                        expected.add(MortonCode.encode(center(x), center(y), center(z)));
+                    }
+                }
+            }
+
+            var covered = new HashSet<Long>();
+            for (var range : ranges) {
+                for (var key = range[0]; key <= range[1]; key++) {
+                    covered.add(key);
+                }
+            }
+
+            assertThat(covered).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    void coversEveryPointOfTheBoxWithinTheLimit() {
+        var random = new Random(2);
+        for (int i = 0; i < 200; i++) {
+            var minX = random.nextDouble() * 200 - 100;
+            var minY = random.nextDouble() * 200 - 100;
+            var minZ = random.nextDouble() * 20 - 10;
+            var size = random.nextDouble() * 20;
+            var maxRanges = 1 + random.nextInt(64);
+
+            var ranges = MortonCode.ranges(minX, minY, minZ, minX + size, minY + size, minZ + size, maxRanges);
+
+            assertThat(ranges.size()).isLessThanOrEqualTo(maxRanges);
+            for (int j = 1; j < ranges.size(); j++) {
+                assertThat(ranges.get(j - 1)[1] + 1).isLessThan(ranges.get(j)[0]);
+            }
+
+            for (int j = 0; j < 200; j++) {
+                var key = MortonCode.encode(
+                        minX + random.nextDouble() * size,
+                        minY + random.nextDouble() * size,
+                        minZ + random.nextDouble() * size
+                );
+                assertThat(contains(ranges, key)).isTrue();
+            }
+        }
+    }
+
+    @Test
+    void coversTheEdgesOfTheScene() {
+        var ranges = MortonCode.ranges(-1e300, -1e300, -1e300, 1e300, 1e300, 1e300, 8);
+
+        assertThat(ranges).hasSize(1);
+        assertThat(ranges.get(0)).containsExactly(0, (1L << 63) - 1);
+    }
+}